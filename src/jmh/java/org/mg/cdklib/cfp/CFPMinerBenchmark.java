@@ -0,0 +1,174 @@
+package org.mg.cdklib.cfp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.mg.cdklib.CDKConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * benchmarks of the main stages of the miner on generated molecules
+ *
+ * build and run with:
+ *
+ * <pre>
+ * mvn -P jmh package
+ * java -jar target/benchmarks.jar CFPMinerBenchmark -prof gc
+ * </pre>
+ *
+ * (-prof gc reports the allocation rate per operation)
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CFPMinerBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class Data
+	{
+		@Param({ "2000" })
+		int numCompounds;
+
+		List<String> smiles;
+		List<String> endpoints;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception
+		{
+			MoleculeGenerator gen = new MoleculeGenerator(1);
+			smiles = gen.smiles(numCompounds);
+			endpoints = gen.endpoints(smiles);
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Type
+	{
+		@Param({ "ecfp0", "ecfp2", "ecfp4", "ecfp6", "fcfp0", "fcfp2", "fcfp4", "fcfp6" })
+		CFPType type;
+	}
+
+	static CFPMiner createMiner(Data data, CFPType type) throws Exception
+	{
+		CFPMiner miner = new CFPMiner(data.endpoints);
+		miner.setType(type);
+		miner.setFeatureSelection(FeatureSelection.filt);
+		miner.setHashfoldsize(1024);
+		return miner;
+	}
+
+	/**
+	 * mined (unfiltered) ecfp4 miner
+	 */
+	@State(Scope.Benchmark)
+	public static class Mined
+	{
+		CFPMiner miner;
+
+		@Setup(Level.Trial)
+		public void setup(Data data) throws Exception
+		{
+			miner = createMiner(data, CFPType.ecfp4);
+			miner.mine(data.smiles);
+		}
+	}
+
+	/**
+	 * mined and filtered ecfp4 miner, with test molecules
+	 */
+	@State(Scope.Benchmark)
+	public static class Filtered
+	{
+		CFPMiner miner;
+		List<IAtomContainer> testMols;
+
+		@Setup(Level.Trial)
+		public void setup(Data data) throws Exception
+		{
+			miner = createMiner(data, CFPType.ecfp4);
+			miner.mine(data.smiles);
+			miner.applyFilter();
+			testMols = new ArrayList<>();
+			for (String smi : new MoleculeGenerator(2).smiles(200))
+				testMols.add(CDKConverter.parseSmiles(smi));
+		}
+	}
+
+	/**
+	 * the sub/super-fragment hierarchy is computed once and kept, it is reset before each
+	 * invocation
+	 */
+	@State(Scope.Benchmark)
+	public static class Hierarchy
+	{
+		@Setup(Level.Invocation)
+		public void reset(Filtered filtered)
+		{
+			filtered.miner.hierarchy = null;
+		}
+	}
+
+	@Benchmark
+	public CFPMiner mine(Data data, Type type) throws Exception
+	{
+		CFPMiner miner = createMiner(data, type.type);
+		miner.mine(data.smiles);
+		return miner;
+	}
+
+	@Benchmark
+	public int applyFilter(Mined mined)
+	{
+		// the filter can be re-applied, each call filters the unfiltered fragments
+		mined.miner.applyFilter();
+		return mined.miner.getNumFragments();
+	}
+
+	@Benchmark
+	public void getFragmentsForTestCompound(Filtered filtered, Blackhole bh) throws Exception
+	{
+		for (IAtomContainer mol : filtered.testMols)
+			bh.consume(filtered.miner.getFragmentsForTestCompound(mol));
+	}
+
+	@Benchmark
+	public double getTanimotoSimilarity(Filtered filtered)
+	{
+		// similarity of the first 200 compounds to each other
+		double sum = 0;
+		int n = Math.min(200, filtered.miner.getNumCompounds());
+		for (int i = 0; i < n; i++)
+			for (int j = i + 1; j < n; j++)
+				sum += filtered.miner.getTanimotoSimilarity(i, j);
+		return sum;
+	}
+
+	@Benchmark
+	public float[] similarityMatrix(Filtered filtered)
+	{
+		return filtered.miner.similarityMatrix();
+	}
+
+	@Benchmark
+	public Object mineSubAndSuperFragments(Filtered filtered, Hierarchy hierarchy)
+			throws Exception
+	{
+		return filtered.miner.getSubFragments(filtered.miner.getFragmentViaIdx(0));
+	}
+}
@@ -0,0 +1,83 @@
+package org.mg.cdklib.cfp;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.mg.cdklib.CDKConverter;
+import org.openscience.cdk.exception.CDKException;
+
+/**
+ * generates random drug-like molecules (chains of linkers and rings with terminal groups) for
+ * benchmarking, the same seed yields the same molecules
+ */
+class MoleculeGenerator
+{
+	/**
+	 * divalent building blocks
+	 */
+	private static final String LINKERS[] = { "C", "CC", "N", "O", "S", "C(=O)", "C(=O)N",
+			"C(C)", "C(O)", "C(F)(F)", "S(=O)(=O)", "c1ccc(cc1)", "c1ccc(nc1)", "c1cc(ccc1Cl)",
+			"C1CCC(CC1)", "N1CCN(CC1)", "c1ccc2cc(ccc2c1)", "C=C", "c1csc(n1)" };
+
+	/**
+	 * monovalent start groups (bonded via their last atom)
+	 */
+	private static final String STARTS[] = { "C", "N", "O", "F", "Cl", "Br", "N#C", "OC(=O)",
+			"CN(C)", "c1ccccc1", "C1CC1", "CO", "[O-][N+](=O)", "FC(F)(F)" };
+
+	/**
+	 * monovalent end groups (bonded via their first atom)
+	 */
+	private static final String ENDS[] = { "C", "N", "O", "F", "Cl", "Br", "C#N", "C(=O)O",
+			"N(C)C", "c1ccccc1", "C1CC1", "OC", "[N+](=O)[O-]", "C(F)(F)F" };
+
+	private final Random random;
+
+	MoleculeGenerator(long seed)
+	{
+		random = new Random(seed);
+	}
+
+	String nextSmiles()
+	{
+		StringBuilder smi = new StringBuilder(STARTS[random.nextInt(STARTS.length)]);
+		int numLinkers = 2 + random.nextInt(8);
+		for (int i = 0; i < numLinkers; i++)
+			smi.append(LINKERS[random.nextInt(LINKERS.length)]);
+		smi.append(ENDS[random.nextInt(ENDS.length)]);
+		return smi.toString();
+	}
+
+	/**
+	 * distinct molecules (the miner does not allow duplicate structures)
+	 */
+	List<String> smiles(int n) throws CDKException
+	{
+		LinkedHashSet<String> uniq = new LinkedHashSet<>();
+		List<String> smiles = new ArrayList<>();
+		while (smiles.size() < n)
+		{
+			String smi = nextSmiles();
+			if (uniq.add(CDKConverter.toAbsoluteSmiles(smi)))
+				smiles.add(smi);
+		}
+		return smiles;
+	}
+
+	/**
+	 * endpoint values that depend on the structure (nitro and halogen groups are more often
+	 * active) to give the chi square filter some signal
+	 */
+	List<String> endpoints(List<String> smiles)
+	{
+		List<String> endpoints = new ArrayList<>();
+		for (String smi : smiles)
+		{
+			double p = (smi.contains("[N+]") || smi.contains("Br")) ? 0.8 : 0.35;
+			endpoints.add(random.nextDouble() < p ? "active" : "inactive");
+		}
+		return endpoints;
+	}
+}
@@ -4,6 +4,7 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.openscience.cdk.ChemFile;
 import org.openscience.cdk.exception.CDKException;
@@ -25,13 +26,20 @@ public class CDKConverter
 		return new SmilesGenerator().create(mol);
 	}
 
-	private static HashMap<String, String> smilesToInchi = new HashMap<String, String>();
+	private static ConcurrentHashMap<String, String> smilesToInchi = new ConcurrentHashMap<>();
 
+	/**
+	 * thread-safe (cached)
+	 */
 	public static String toInchi(String smiles) throws CDKException
 	{
-		if (!smilesToInchi.containsKey(smiles))
-			smilesToInchi.put(smiles, toInchi(parseSmiles(smiles)));
-		return smilesToInchi.get(smiles);
+		String inchi = smilesToInchi.get(smiles);
+		if (inchi == null)
+		{
+			inchi = toInchi(parseSmiles(smiles));
+			smilesToInchi.putIfAbsent(smiles, inchi);
+		}
+		return inchi;
 	}
 
 	public static String toInchi(IAtomContainer mol) throws CDKException
@@ -42,13 +50,20 @@ public class CDKConverter
 		return inchi;
 	}
 
-	private static HashMap<String, String> smilesToAbsolute = new HashMap<String, String>();
+	private static ConcurrentHashMap<String, String> smilesToAbsolute = new ConcurrentHashMap<>();
 
+	/**
+	 * thread-safe (cached), e.g. for concurrent queries to a trained miner
+	 */
 	public static String toAbsoluteSmiles(String smiles) throws InvalidSmilesException, CDKException
 	{
-		if (!smilesToAbsolute.containsKey(smiles))
-			smilesToAbsolute.put(smiles, toAbsoluteSmiles(parseSmiles(smiles)));
-		return smilesToAbsolute.get(smiles);
+		String absolute = smilesToAbsolute.get(smiles);
+		if (absolute == null)
+		{
+			absolute = toAbsoluteSmiles(parseSmiles(smiles));
+			smilesToAbsolute.putIfAbsent(smiles, absolute);
+		}
+		return absolute;
 	}
 
 	public static String toAbsoluteSmiles(IAtomContainer mol) throws CDKException
@@ -56,27 +71,56 @@ public class CDKConverter
 		return SmilesGenerator.absolute().create(mol);
 	}
 
+	/**
+	 * canonical smiles (the same for all smiles representations of a structure)
+	 */
+	public static String toCanonicalSmiles(IAtomContainer mol) throws CDKException
+	{
+		return SmilesGenerator.unique().create(mol);
+	}
+
 	public static String toInchiKey(IAtomContainer mol) throws CDKException
 	{
 		return InChIGeneratorFactory.getInstance().getInChIGenerator(mol).getInchiKey();
 	}
 
-	private static HashMap<String, IAtomContainer> smilesToMol = new HashMap<String, IAtomContainer>();
+	private static ConcurrentHashMap<String, IAtomContainer> smilesToMol = new ConcurrentHashMap<String, IAtomContainer>();
 
 	/**
 	 * returns a the same instance each time, be carefull to clone it before changing it
 	 * 
+	 * thread-safe, parsing is done without holding a lock (so that parallel cfp-mining is not serialized) 
+	 * 
+	 * @param smiles
+	 * @return
+	 * @throws InvalidSmilesException
+	 */
+	public static IAtomContainer parseSmiles(String smiles) throws InvalidSmilesException
+	{
+		IAtomContainer mol = smilesToMol.get(smiles);
+		if (mol == null)
+		{
+			mol = new SmilesParser(SilentChemObjectBuilder.getInstance()).parseSmiles(smiles);
+			IAtomContainer prev = smilesToMol.putIfAbsent(smiles, mol);
+			if (prev != null)
+				mol = prev;
+		}
+		return mol;
+	}
+
+	/**
+	 * parses the smiles without caching the molecule (for streaming large datasets)
+	 * 
 	 * @param smiles
 	 * @return
 	 * @throws InvalidSmilesException
 	 */
-	public static synchronized IAtomContainer parseSmiles(String smiles)
-			throws InvalidSmilesException
+	public static IAtomContainer parseSmilesUncached(String smiles) throws InvalidSmilesException
 	{
-		if (!smilesToMol.containsKey(smiles))
-			smilesToMol.put(smiles,
-					new SmilesParser(SilentChemObjectBuilder.getInstance()).parseSmiles(smiles));
-		return smilesToMol.get(smiles);
+		IAtomContainer mol = smilesToMol.get(smiles);
+		if (mol == null)
+			mol = new SmilesParser(SilentChemObjectBuilder.getInstance()).parseSmiles(smiles);
+		return mol;
 	}
 
 	public static void setMolForSmiles(String smi, IAtomContainer a)
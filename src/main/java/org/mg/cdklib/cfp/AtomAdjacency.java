@@ -0,0 +1,64 @@
+package org.mg.cdklib.cfp;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * the bonds of a molecule as neighbor bitset for each atom (a single long per atom for molecules
+ * with up to 64 atoms), adjacency and overlap of two atom bitsets are a few bitwise operations
+ * instead of connected-atom list lookups
+ */
+class AtomAdjacency
+{
+	private final int numWords;
+
+	/**
+	 * neighbors of atom a are the words [a * numWords, (a + 1) * numWords)
+	 */
+	private final long neighbors[];
+
+	AtomAdjacency(IAtomContainer mol)
+	{
+		numWords = CompoundSet.numWords(mol.getAtomCount());
+		neighbors = new long[mol.getAtomCount() * numWords];
+		for (int i = 0; i < mol.getBondCount(); i++)
+		{
+			IBond b = mol.getBond(i);
+			int a1 = mol.getAtomNumber(b.getAtom(0));
+			int a2 = mol.getAtomNumber(b.getAtom(1));
+			neighbors[a1 * numWords + (a2 >>> 6)] |= 1L << a2;
+			neighbors[a2 * numWords + (a1 >>> 6)] |= 1L << a1;
+		}
+	}
+
+	/**
+	 * true if an atom of atoms1 is bonded to an atom of atoms2
+	 */
+	boolean isAdjacent(long[] atoms1, long[] atoms2)
+	{
+		for (int w1 = 0; w1 < atoms1.length; w1++)
+		{
+			long word = atoms1[w1];
+			while (word != 0)
+			{
+				int row = ((w1 << 6) + Long.numberOfTrailingZeros(word)) * numWords;
+				for (int w = 0; w < atoms2.length; w++)
+					if ((neighbors[row + w] & atoms2[w]) != 0)
+						return true;
+				word &= word - 1;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * true if the atom bitsets share an atom
+	 */
+	static boolean overlap(long[] atoms1, long[] atoms2)
+	{
+		for (int w = Math.min(atoms1.length, atoms2.length) - 1; w >= 0; w--)
+			if ((atoms1[w] & atoms2[w]) != 0)
+				return true;
+		return false;
+	}
+}
@@ -1,13 +1,21 @@
 package org.mg.cdklib.cfp;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.mg.cdklib.CDKConverter;
@@ -18,40 +26,49 @@ import org.mg.javalib.datamining.ResultSet;
 import org.mg.javalib.util.CountedSet;
 import org.mg.javalib.util.DoubleArraySummary;
 import org.mg.javalib.util.FileUtil;
-import org.mg.javalib.util.HashUtil;
-import org.mg.javalib.util.SetUtil;
 import org.openscience.cdk.exception.CDKException;
-import org.openscience.cdk.fingerprint.BitSetFingerprint;
 import org.openscience.cdk.fingerprint.CircularFingerprinter;
-import org.openscience.cdk.fingerprint.IBitFingerprint;
 import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingSDFReader;
+import org.openscience.cdk.silent.SilentChemObjectBuilder;
+import org.openscience.cdk.smiles.SmilesGenerator;
 
 public class BasicCFPMiner implements Serializable
 {
-	private static final long serialVersionUID = 7L;
+	private static final long serialVersionUID = 8L;
 
 	protected int numCompounds = 0;
 	protected List<String> trainingDataSmiles;
-	protected LinkedHashMap<CFPFragment, LinkedHashSet<Integer>> fragmentToCompound = new LinkedHashMap<CFPFragment, LinkedHashSet<Integer>>();
+	protected FragmentIndex fragmentToCompound = new FragmentIndex();
 	protected int numUnfoldedConflicts = 0;
 
 	protected CFPType type;
 	protected FeatureSelection featureSelection;
 	protected int hashfoldsize;
 	protected int absMinFreq = 2;
-
-	transient CircularFingerprinter fp;
-	transient CFPFragment[] fragmentList;
-	transient HashMap<Integer, LinkedHashSet<CFPFragment>> compoundToFragment;
-	transient HashMap<CFPFragment, Integer> fragmentToIdx = new HashMap<CFPFragment, Integer>();
+	protected int numThreads = 1;
+	protected boolean storeAtoms = false;
+	protected int atomsCacheSize = 10000;
+	protected boolean trackCollisions = true;
+	protected int testCacheSize = 0;
+	protected TestCacheKey testCacheKey = TestCacheKey.canonicalSmiles;
+	protected int includedCacheSize = 1000;
+
+	transient volatile CFPFragment[] fragmentList;
+	transient volatile int[][] compoundToFragment;
+	transient volatile HashMap<CFPFragment, Integer> fragmentToIdx;
 	transient HashMap<CFPFragment, Integer> fragmentToIteration = new HashMap<CFPFragment, Integer>();
 	transient HashMap<CFPFragment, Integer> fragmentToNumAtoms = new HashMap<CFPFragment, Integer>();
-	transient HashMap<IAtomContainer, LinkedHashSet<CFPFragment>> testMoleculeToFragment;
+	transient volatile BoundedCache<String, LinkedHashSet<CFPFragment>> testCompoundCache;
+	transient List<MoleculeFingerprint> compoundAtoms;
+	transient volatile BoundedCache<AtomsKey, MoleculeFingerprint> atomsCache;
+
+	transient volatile FragmentHierarchy hierarchy;
+	transient volatile boolean frozen;
 
-	transient HashMap<CFPFragment, LinkedHashSet<CFPFragment>> subFragments;
-	transient HashMap<CFPFragment, LinkedHashSet<CFPFragment>> superFragments;
+	CollisionCounter collisions;
 
-	private HashMap<Integer, Set<Integer>> collisionMap;
+	protected transient CFPMinerListener listener;
 
 	public BasicCFPMiner()
 	{
@@ -112,64 +129,284 @@ public class BasicCFPMiner implements Serializable
 		return absMinFreq;
 	}
 
+	/**
+	 * number of worker threads for fingerprinting, each worker uses its own fingerprinter
+	 * (the mining result does not depend on this setting)
+	 */
+	public void setNumThreads(int numThreads)
+	{
+		if (numThreads < 1)
+			throw new IllegalArgumentException("num threads must be >= 1: " + numThreads);
+		this.numThreads = numThreads;
+	}
+
+	public int getNumThreads()
+	{
+		return numThreads;
+	}
+
+	/**
+	 * receives progress, stage timings and counters (null to disable, the default)
+	 */
+	public void setListener(CFPMinerListener listener)
+	{
+		this.listener = listener;
+	}
+
+	public CFPMinerListener getListener()
+	{
+		return listener;
+	}
+
+	/**
+	 * start time of a stage (only measured if a listener is set)
+	 */
+	protected long stageStart()
+	{
+		return listener != null ? System.nanoTime() : 0L;
+	}
+
+	protected void stageFinished(CFPMinerListener.Stage stage, long start, long numProcessed)
+	{
+		if (listener != null)
+			listener.stageFinished(this, stage, System.nanoTime() - start, numProcessed,
+					fragmentToCompound.size());
+	}
+
+	protected void count(CFPMinerListener.Counter counter, long delta)
+	{
+		if (listener != null)
+			listener.count(this, counter, delta);
+	}
+
+	/**
+	 * keeps the atoms of each fragment occurrence in memory when mining (not for folding), atom
+	 * queries for training compounds are array lookups instead of re-computing the fingerprint
+	 */
+	public void setStoreAtoms(boolean storeAtoms)
+	{
+		this.storeAtoms = storeAtoms;
+	}
+
+	public boolean isStoreAtoms()
+	{
+		return storeAtoms;
+	}
+
+	/**
+	 * counts the distinct hash codes per bit when folding (enabled by default), required for
+	 * {@link #estimateCollisions(ResultSet, int, String)}, can be disabled to save time and memory
+	 */
+	public void setTrackCollisions(boolean trackCollisions)
+	{
+		this.trackCollisions = trackCollisions;
+		if (!trackCollisions)
+			collisions = null;
+	}
+
+	public boolean isTrackCollisions()
+	{
+		return trackCollisions;
+	}
+
 	public boolean isFragmentIncludedInCompound(int compound, CFPFragment fragment)
 	{
-		if (fragmentToCompound.get(fragment) == null)
+		int slot = fragmentToCompound.slotOf(fragment);
+		if (slot == -1)
 			throw new IllegalStateException("no compounds for fragment, should have been removed! "
 					+ fragment + " " + fragmentToCompound.get(fragment));
-		return (fragmentToCompound.get(fragment).contains(compound));
+		return fragmentToCompound.contains(slot, compound);
 	}
 
-	private void initCircularFingerprinter()
+	private int fold(int hashCode)
 	{
-		collisionMap = new HashMap<>();
-		fp = new CircularFingerprinter(type.getClassType())
+		int bit = fold(hashCode, hashfoldsize);
+		if (trackCollisions)
 		{
-			public IBitFingerprint getBitFingerprint(IAtomContainer mol) throws CDKException
-			{
-				calculate(mol);
-				if (featureSelection != FeatureSelection.fold)
-					return null;
-				final BitSet bits = new BitSet(hashfoldsize);
-				for (int n = 0; n < getFPCount(); n++)
-				{
-					int i = getFP(n).hashCode;
-					long b = i >= 0 ? i : ((i & 0x7FFFFFFF) | (1L << 31));
-					int bit = (int) (b % hashfoldsize);
-					if (!collisionMap.containsKey(bit))
-						collisionMap.put(bit, new HashSet<Integer>());
-					collisionMap.get(bit).add(i);
-					bits.set(bit);
-				}
-				return new BitSetFingerprint(bits);
-			}
-		};
+			if (collisions == null)
+				collisions = new CollisionCounter(hashfoldsize);
+			collisions.add(hashCode, bit);
+		}
+		return bit;
+	}
+
+	/**
+	 * bit of the hash code in the folded fingerprint
+	 */
+	static int fold(int hashCode, int hashfoldsize)
+	{
+		long b = hashCode >= 0 ? hashCode : ((hashCode & 0x7FFFFFFF) | (1L << 31));
+		return (int) (b % hashfoldsize);
 	}
 
 	public int[] getAtoms(String smiles, CFPFragment fragment) throws CDKException
 	{
-		return getAtoms(CDKConverter.parseSmiles(smiles), fragment);
+		if (featureSelection == FeatureSelection.fold)
+			throw new IllegalArgumentException();
+		return getQueryFingerprint(smiles).getAtoms(fragment.getId());
+	}
+
+	/**
+	 * fingerprint with atoms of a query molecule, neither the parsed molecule nor the fingerprint
+	 * is cached (one-off queries would evict the training compounds from the atoms cache)
+	 */
+	private MoleculeFingerprint getQueryFingerprint(String smiles) throws CDKException
+	{
+		return new MoleculeFingerprint(new CircularFingerprinter(type.getClassType()),
+				CDKConverter.parseSmilesUncached(smiles), true);
+	}
+
+	/**
+	 * atoms of the (first occurrence of the) fragment in a training compound
+	 */
+	public int[] getAtoms(int compound, CFPFragment fragment) throws CDKException
+	{
+		if (featureSelection == FeatureSelection.fold)
+			throw new IllegalArgumentException();
+		if (compoundAtoms != null)
+			return compoundAtoms.get(compound).getAtoms(fragment.getId());
+		return getAtoms(trainingDataSmiles.get(compound), fragment);
+	}
+
+	/**
+	 * atoms of all occurrences of the fragment in a training compound
+	 */
+	public Set<Integer> getAtomsMultiple(int compound, CFPFragment fragment) throws CDKException
+	{
+		if (featureSelection == FeatureSelection.fold)
+			throw new IllegalArgumentException();
+		if (compoundAtoms != null)
+			return getAtomsMultiple(compoundAtoms.get(compound), fragment);
+		return getAtomsMultiple(CDKConverter.parseSmiles(trainingDataSmiles.get(compound)),
+				fragment);
+	}
+
+	/**
+	 * atoms of all occurrences of the fragment in a training compound as bitset
+	 */
+	long[] getAtomBits(int compound, CFPFragment fragment) throws CDKException
+	{
+		if (featureSelection == FeatureSelection.fold)
+			throw new IllegalArgumentException();
+		if (compoundAtoms != null)
+			return compoundAtoms.get(compound).getAtomBits(fragment.getId());
+		return getMoleculeFingerprint(CDKConverter.parseSmiles(trainingDataSmiles.get(compound)))
+				.getAtomBits(fragment.getId());
+	}
+
+	/**
+	 * fingerprint with atoms of a training compound (stored or computed, not cached)
+	 */
+	MoleculeFingerprint getTrainingFingerprint(int compound) throws CDKException
+	{
+		if (featureSelection == FeatureSelection.fold)
+			throw new IllegalArgumentException();
+		if (compoundAtoms != null)
+			return compoundAtoms.get(compound);
+		return new MoleculeFingerprint(new CircularFingerprinter(type.getClassType()),
+				CDKConverter.parseSmiles(trainingDataSmiles.get(compound)), true);
+	}
+
+	public Set<Set<Integer>> getAtomsMultipleDistinct(int compound, CFPFragment fragment)
+			throws CDKException
+	{
+		if (featureSelection == FeatureSelection.fold)
+			throw new IllegalArgumentException();
+		if (compoundAtoms != null)
+			return getAtomsMultipleDistinct(compoundAtoms.get(compound), fragment);
+		return getAtomsMultipleDistinct(
+				CDKConverter.parseSmiles(trainingDataSmiles.get(compound)), fragment);
 	}
 
 	public int[] getAtoms(IAtomContainer mol, CFPFragment fragment) throws CDKException
 	{
 		if (featureSelection == FeatureSelection.fold)
 			throw new IllegalArgumentException();
-		int atoms[] = null;
-		initCircularFingerprinter();
-		fp.getBitFingerprint(mol);
-		for (int i = 0; i < fp.getFPCount(); i++)
+		return getMoleculeFingerprint(mol).getAtoms(fragment.getId());
+	}
+
+	/**
+	 * key for the atom-matches cache, the molecule is compared by identity
+	 */
+	static class AtomsKey
+	{
+		final IAtomContainer mol;
+		final CFPType type;
+
+		AtomsKey(IAtomContainer mol, CFPType type)
+		{
+			this.mol = mol;
+			this.type = type;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * System.identityHashCode(mol) + type.ordinal();
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj instanceof AtomsKey && ((AtomsKey) obj).mol == mol
+					&& ((AtomsKey) obj).type == type;
+		}
+	}
+
+	/**
+	 * max number of molecules whose fragment atoms are cached (per miner)
+	 */
+	public void setAtomsCacheSize(int atomsCacheSize)
+	{
+		this.atomsCacheSize = atomsCacheSize;
+		atomsCache = null;
+	}
+
+	/**
+	 * cache for atom-matches of parsed molecules (used for training compounds as well if atoms
+	 * are not stored), exposes hits/misses/evictions
+	 */
+	public BoundedCache<?, ?> getAtomsCache()
+	{
+		return atomsCache();
+	}
+
+	/**
+	 * the caches are created on first use (or by freeze()), reading them does not lock the miner
+	 */
+	private BoundedCache<AtomsKey, MoleculeFingerprint> atomsCache()
+	{
+		BoundedCache<AtomsKey, MoleculeFingerprint> cache = atomsCache;
+		if (cache == null)
 		{
-			if (fp.getFP(i).hashCode == fragment.getId())
+			synchronized (this)
 			{
-				atoms = fp.getFP(i).atoms;
-				break;
+				cache = atomsCache;
+				if (cache == null)
+				{
+					cache = new BoundedCache<>(atomsCacheSize);
+					atomsCache = cache;
+				}
 			}
 		}
-		return atoms;
+		return cache;
 	}
 
-	private static transient HashMap<Integer, Set<Integer>> atomsMultCache = new HashMap<>();
+	private MoleculeFingerprint getMoleculeFingerprint(IAtomContainer mol) throws CDKException
+	{
+		BoundedCache<AtomsKey, MoleculeFingerprint> cache = atomsCache();
+		AtomsKey key = new AtomsKey(mol, type);
+		MoleculeFingerprint m = cache.get(key);
+		if (m == null)
+		{
+			count(CFPMinerListener.Counter.atomsCacheMisses, 1);
+			m = new MoleculeFingerprint(new CircularFingerprinter(type.getClassType()), mol, true);
+			cache.put(key, m);
+		}
+		else
+			count(CFPMinerListener.Counter.atomsCacheHits, 1);
+		return m;
+	}
 
 	/**
 	 * fragment may occur multiple times
@@ -184,20 +421,17 @@ public class BasicCFPMiner implements Serializable
 	{
 		if (featureSelection == FeatureSelection.fold)
 			throw new IllegalArgumentException();
+		return getAtomsMultiple(getMoleculeFingerprint(mol), fragment);
+	}
 
-		Integer key = HashUtil.hashCode(type, mol, fragment);
-		if (!atomsMultCache.containsKey(key))
-		{
-			Set<Integer> atoms = new HashSet<>();
-			initCircularFingerprinter();
-			fp.getBitFingerprint(mol);
-			for (int i = 0; i < fp.getFPCount(); i++)
-				if (fp.getFP(i).hashCode == fragment.getId())
-					for (int a : fp.getFP(i).atoms)
-						atoms.add(a);
-			atomsMultCache.put(key, atoms);
-		}
-		return atomsMultCache.get(key);
+	private static Set<Integer> getAtomsMultiple(MoleculeFingerprint m, CFPFragment fragment)
+	{
+		Set<Integer> atoms = new HashSet<>();
+		for (int i = 0; i < m.size(); i++)
+			if (m.hashCodes[i] == fragment.getId())
+				for (int j = m.atomOffsets[i]; j < m.atomOffsets[i + 1]; j++)
+					atoms.add(m.atoms[j]);
+		return atoms;
 	}
 
 	public static void main(String[] args) throws Exception
@@ -222,80 +456,558 @@ public class BasicCFPMiner implements Serializable
 
 	}
 
-	private static transient HashMap<Integer, Set<Set<Integer>>> atomsMultCacheDistinct = new HashMap<>();
-
 	public Set<Set<Integer>> getAtomsMultipleDistinct(IAtomContainer mol, CFPFragment fragment)
 			throws CDKException
 	{
 		if (featureSelection == FeatureSelection.fold)
 			throw new IllegalArgumentException();
+		return getAtomsMultipleDistinct(getMoleculeFingerprint(mol), fragment);
+	}
+
+	private static Set<Set<Integer>> getAtomsMultipleDistinct(MoleculeFingerprint m,
+			CFPFragment fragment)
+	{
+		Set<Set<Integer>> atomsDistinct = new HashSet<>();
+		for (int i = 0; i < m.size(); i++)
+			if (m.hashCodes[i] == fragment.getId())
+			{
+				Set<Integer> atoms = new HashSet<>();
+				for (int j = m.atomOffsets[i]; j < m.atomOffsets[i + 1]; j++)
+					atoms.add(m.atoms[j]);
+				atomsDistinct.add(atoms);
+			}
+		return atomsDistinct;
+	}
+
+	protected void checkModifiable()
+	{
+		if (frozen)
+			throw new IllegalStateException("miner is frozen, use clone() for a modifiable copy");
+		if (fragmentToCompound.isReadOnly())
+			throw new IllegalStateException(
+					"miner is read-only (memory-mapped), use clone() for a modifiable copy");
+	}
+
+	public void mine(List<String> smiles) throws Exception
+	{
+		initMining(smiles);
+		mineCompounds(smiles);
+		fragmentToCompound.optimize();
+	}
+
+	/**
+	 * prepares mining of the compounds (that are inserted afterwards)
+	 */
+	protected void initMining(List<String> smiles) throws Exception
+	{
+		checkModifiable();
+		this.trainingDataSmiles = smiles;
+		compoundAtoms = (storeAtoms && featureSelection != FeatureSelection.fold)
+				? new ArrayList<MoleculeFingerprint>(smiles.size())
+				: null;
+		collisions = null;
+	}
 
-		Integer key = HashUtil.hashCode(type, mol, fragment);
-		if (!atomsMultCacheDistinct.containsKey(key))
+	/**
+	 * mines the same compounds with several miners in a single pass: each molecule is fingerprinted
+	 * once with the largest diameter, the fragments of the smaller diameters (e.g. ecfp0 to ecfp6)
+	 * are selected via their iteration, folding miners fold the fingerprint into their own size
+	 * (e.g. a fold-size sweep), each miner has its own fragment index and collision statistics
+	 * 
+	 * the miners have to be configured (type, feature selection, ...) but not mined yet, the types
+	 * have to be either all ecfp or all fcfp, the results equal mining with each miner separately
+	 * 
+	 * the fingerprinting is shared, so all miners have to use the same number of threads
+	 */
+	public static void mineMultiple(List<String> smiles, final BasicCFPMiner... miners)
+			throws Exception
+	{
+		if (miners.length == 0)
+			throw new IllegalArgumentException("no miners given");
+		CFPType largest = null;
+		boolean atoms = false;
+		for (BasicCFPMiner m : miners)
 		{
-			Set<Set<Integer>> atomsDistinct = new HashSet<>();
-			initCircularFingerprinter();
-			fp.getBitFingerprint(mol);
-			for (int i = 0; i < fp.getFPCount(); i++)
-				if (fp.getFP(i).hashCode == fragment.getId())
+			if (m.type == null)
+				throw new IllegalArgumentException("type not set");
+			if (largest != null && largest.isECFP() != m.type.isECFP())
+				throw new IllegalArgumentException(
+						"cannot mine ecfp and fcfp in one pass: " + largest + ", " + m.type);
+			if (largest == null || m.type.getDiameter() > largest.getDiameter())
+				largest = m.type;
+			if (m.featureSelection == FeatureSelection.fold && m.hashfoldsize <= 0)
+				throw new IllegalArgumentException("invalid hashfoldsize " + m.hashfoldsize);
+			if (m.storeAtoms && m.featureSelection != FeatureSelection.fold)
+				atoms = true;
+			if (m.numThreads != miners[0].numThreads)
+				throw new IllegalArgumentException("miners have to use the same number of threads: "
+						+ miners[0].numThreads + ", " + m.numThreads);
+		}
+		if (new HashSet<>(Arrays.asList(miners)).size() != miners.length)
+			throw new IllegalArgumentException("miners have to be distinct");
+		for (BasicCFPMiner m : miners)
+			m.initMining(smiles);
+
+		final CFPType type = largest;
+		final boolean storeAtoms = atoms;
+		final long start = System.nanoTime();
+		ParallelBlocks.run(miners[0].numThreads, smiles.size(),
+				new ParallelBlocks.Block<MoleculeFingerprint[]>()
+				{
+					@Override
+					public MoleculeFingerprint[] compute(int from, int to) throws Exception
+					{
+						CircularFingerprinter blockFP = new CircularFingerprinter(
+								type.getClassType());
+						MoleculeFingerprint[] res = new MoleculeFingerprint[to - from];
+						for (int i = from; i < to; i++)
+							res[i - from] = new MoleculeFingerprint(blockFP,
+									CDKConverter.parseSmiles(smiles.get(i)), storeAtoms);
+						return res;
+					}
+				}, new ParallelBlocks.Merger<MoleculeFingerprint[]>()
 				{
-					Set<Integer> atoms = new HashSet<>();
-					for (int a : fp.getFP(i).atoms)
-						atoms.add(a);
-					atomsDistinct.add(atoms);
+					int done = 0;
+
+					@Override
+					public void merge(MoleculeFingerprint[] result)
+					{
+						for (MoleculeFingerprint fp : result)
+							for (BasicCFPMiner m : miners)
+								m.insert(fp.restrict(m.type.getDiameter() / 2,
+										m.compoundAtoms != null), false);
+						done += result.length;
+						for (BasicCFPMiner m : miners)
+							if (m.listener != null)
+								m.listener.progress(m, CFPMinerListener.Stage.mining, done,
+										smiles.size());
+					}
+				});
+		for (BasicCFPMiner m : miners)
+		{
+			m.fragmentToCompound.optimize();
+			m.count(CFPMinerListener.Counter.molecules, m.numCompounds);
+			m.count(CFPMinerListener.Counter.fragmentsCreated, m.fragmentToCompound.size());
+			m.stageFinished(CFPMinerListener.Stage.mining, start, m.numCompounds);
+		}
+	}
+
+	/**
+	 * adds compounds to the mined data without re-mining the already mined compounds
+	 * 
+	 * derived indices are extended (or reset if new fragments occur), compound indices of the new
+	 * compounds start at the current number of compounds
+	 */
+	public void append(final List<String> smiles) throws Exception
+	{
+		checkModifiable();
+		if (trainingDataSmiles == null)
+			throw new IllegalStateException("nothing mined yet, call mine() first");
+
+		// fingerprint first, the miner is not changed if this fails (e.g. an invalid smiles)
+		long start = stageStart();
+		final boolean atoms = compoundAtoms != null;
+		final MoleculeFingerprint fingerprints[] = new MoleculeFingerprint[smiles.size()];
+		ParallelBlocks.run(numThreads, smiles.size(), new ParallelBlocks.Block<Integer>()
+		{
+			@Override
+			public Integer compute(int from, int to) throws Exception
+			{
+				CircularFingerprinter blockFP = new CircularFingerprinter(type.getClassType());
+				for (int i = from; i < to; i++)
+					fingerprints[i] = new MoleculeFingerprint(blockFP,
+							CDKConverter.parseSmiles(smiles.get(i)), atoms);
+				return to - from;
+			}
+		}, new ParallelBlocks.Merger<Integer>()
+		{
+			int done = 0;
+
+			@Override
+			public void merge(Integer result)
+			{
+				done += result;
+				if (listener != null)
+					listener.progress(BasicCFPMiner.this, CFPMinerListener.Stage.mining, done,
+							smiles.size());
+			}
+		});
+		appendFingerprinted();
+
+		// insert the compounds, extend the smiles
+		List<String> allSmiles = new ArrayList<>(trainingDataSmiles);
+		allSmiles.addAll(smiles);
+		trainingDataSmiles = allSmiles;
+		if (fragmentToIteration == null)
+		{
+			// transient fields are null after de-serialization
+			fragmentToIteration = new HashMap<CFPFragment, Integer>();
+			fragmentToNumAtoms = new HashMap<CFPFragment, Integer>();
+		}
+		int numFragmentsBefore = fragmentToCompound.size();
+		int numCompoundsBefore = numCompounds;
+		List<int[]> newCompoundToFragment = compoundToFragment != null ? new ArrayList<int[]>()
+				: null;
+		for (MoleculeFingerprint m : fingerprints)
+		{
+			int slots[] = insert(m, newCompoundToFragment != null);
+			if (newCompoundToFragment != null)
+				newCompoundToFragment.add(slots);
+		}
+		miningFinished(start, numFragmentsBefore, numCompoundsBefore);
+		fragmentToCompound.optimize();
+
+		// fragments of the already mined compounds are unchanged
+		if (compoundToFragment != null)
+		{
+			compoundToFragment = Arrays.copyOf(compoundToFragment, numCompounds);
+			for (int c = numCompoundsBefore; c < numCompounds; c++)
+				compoundToFragment[c] = newCompoundToFragment.get(c - numCompoundsBefore);
+		}
+		if (fragmentToCompound.size() > numFragmentsBefore)
+		{
+			// new fragments are appended, i.e. indices of the existing fragments are unchanged
+			fragmentList = null;
+			if (fragmentToIdx != null)
+				for (int s = fragmentToCompound.nextSlot(0); s != -1; s = fragmentToCompound
+						.nextSlot(s + 1))
+				{
+					CFPFragment f = new CFPFragment(fragmentToCompound.getId(s));
+					if (!fragmentToIdx.containsKey(f))
+						fragmentToIdx.put(f, fragmentToIdx.size());
 				}
-			atomsMultCacheDistinct.put(key, atomsDistinct);
+			hierarchy = null;
+			includedFragments = null;
+			if (featureSelection != FeatureSelection.fold)
+				clearTestCompoundCache();
 		}
-		return atomsMultCacheDistinct.get(key);
 	}
 
-	public void mine(List<String> smiles) throws Exception
+	/**
+	 * called by {@link #append(List)} after the new compounds have been fingerprinted and before
+	 * they are inserted (i.e. the miner is unchanged if fingerprinting fails)
+	 */
+	protected void appendFingerprinted()
 	{
-		this.trainingDataSmiles = smiles;
+	}
 
-		initCircularFingerprinter();
-		for (String smi : smiles)
+	/**
+	 * fingerprints (in parallel) and inserts compounds
+	 */
+	private void mineCompounds(final List<String> smiles) throws Exception
+	{
+		mineCompounds(smiles.size(), new MoleculeSource()
 		{
-			IBitFingerprint finger = fp.getBitFingerprint(CDKConverter.parseSmiles(smi));
-			if (featureSelection == FeatureSelection.fold)
-				for (int i : finger.getSetbits())
-					insert(fragmentToCompound, new CFPFragment(i), numCompounds);
-			else
-				for (int i = 0; i < fp.getFPCount(); i++)
+			@Override
+			public IAtomContainer getMolecule(int i) throws CDKException
+			{
+				return CDKConverter.parseSmiles(smiles.get(i));
+			}
+		});
+	}
+
+	private interface MoleculeSource
+	{
+		/**
+		 * @return the i-th molecule, null to skip it
+		 */
+		IAtomContainer getMolecule(int i) throws CDKException;
+	}
+
+	/**
+	 * fingerprints (in parallel) and inserts compounds, blocks are inserted while the next blocks
+	 * are still computed
+	 */
+	private void mineCompounds(final int n, final MoleculeSource molecules) throws Exception
+	{
+		final boolean atoms = compoundAtoms != null;
+		long start = stageStart();
+		int numFragmentsBefore = fragmentToCompound.size();
+		int numCompoundsBefore = numCompounds;
+		ParallelBlocks.run(numThreads, n, new ParallelBlocks.Block<MoleculeFingerprint[]>()
+		{
+			@Override
+			public MoleculeFingerprint[] compute(int from, int to) throws Exception
+			{
+				// fingerprinter is not thread-safe, use one instance per block
+				CircularFingerprinter blockFP = new CircularFingerprinter(type.getClassType());
+				MoleculeFingerprint[] res = new MoleculeFingerprint[to - from];
+				for (int i = from; i < to; i++)
 				{
-					//					if (fp.getFP(i).hashCode == 1039376976)
-					//					{
-					//						System.err.println(fp.getFP(i).atoms.length + " " + ArrayUtil.toString(fp.getFP(i).atoms));
-					//						try
-					//						{
-					//							drawFP(null, mol, fp.getFP(i).atoms);
-					//						}
-					//						catch (Exception e)
-					//						{
-					//							e.printStackTrace();
-					//						}
-					//					}
-					CFPFragment frag = new CFPFragment(fp.getFP(i).hashCode);
-					insert(fragmentToCompound, frag, numCompounds);
-					boolean conflict = check(fragmentToIteration, frag, fp.getFP(i).iteration);
-					conflict |= check(fragmentToNumAtoms, frag, fp.getFP(i).atoms.length);
-					if (conflict)
+					IAtomContainer mol = molecules.getMolecule(i);
+					if (mol != null)
+						res[i - from] = new MoleculeFingerprint(blockFP, mol, atoms);
+				}
+				return res;
+			}
+		}, new ParallelBlocks.Merger<MoleculeFingerprint[]>()
+		{
+			int done = 0;
+
+			@Override
+			public void merge(MoleculeFingerprint[] result)
+			{
+				for (MoleculeFingerprint m : result)
+					if (m != null)
+						insert(m, false);
+				done += result.length;
+				if (listener != null)
+					listener.progress(BasicCFPMiner.this, CFPMinerListener.Stage.mining, done, n);
+			}
+		});
+		miningFinished(start, numFragmentsBefore, numCompoundsBefore);
+	}
+
+	private void miningFinished(long start, int numFragmentsBefore, int numCompoundsBefore)
+	{
+		count(CFPMinerListener.Counter.molecules, numCompounds - numCompoundsBefore);
+		count(CFPMinerListener.Counter.fragmentsCreated,
+				fragmentToCompound.size() - numFragmentsBefore);
+		stageFinished(CFPMinerListener.Stage.mining, start, numCompounds - numCompoundsBefore);
+	}
+
+	/**
+	 * number of molecules that are fingerprinted at once (per thread) when streaming
+	 */
+	private static final int STREAM_BATCH_SIZE = 1000;
+
+	/**
+	 * mines a file without keeping the parsed molecules in memory, see {@link #mine(Iterator)}
+	 * 
+	 * sdf files (ending with .sdf or .sd) are converted to smiles, otherwise each line is expected
+	 * to start with a smiles (followed by optional white-space separated columns)
+	 * 
+	 * @return number of skipped (invalid) records
+	 */
+	public int mineFile(String path) throws Exception
+	{
+		String lower = path.toLowerCase();
+		if (lower.endsWith(".sdf") || lower.endsWith(".sd"))
+		{
+			try (IteratingSDFReader reader = new IteratingSDFReader(new FileReader(path),
+					SilentChemObjectBuilder.getInstance()))
+			{
+				return mineStream(reader, true);
+			}
+		}
+		else
+		{
+			try (final BufferedReader reader = new BufferedReader(new FileReader(path)))
+			{
+				return mine(new Iterator<String>()
+				{
+					String next = readSmiles();
+
+					private String readSmiles()
 					{
-						//						System.err.println(fp.getFP(i).hashCode);
-						//						if (numUnfoldedConflicts > 5)
-						//							System.exit(1);
-						numUnfoldedConflicts++;
+						try
+						{
+							String line;
+							while ((line = reader.readLine()) != null)
+								if (line.trim().length() > 0)
+									return line.trim().split("\\s")[0];
+							return null;
+						}
+						catch (IOException e)
+						{
+							throw new UncheckedIOException(e);
+						}
 					}
+
+					@Override
+					public boolean hasNext()
+					{
+						return next != null;
+					}
+
+					@Override
+					public String next()
+					{
+						if (next == null)
+							throw new NoSuchElementException();
+						String s = next;
+						next = readSmiles();
+						return s;
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * streaming alternative to {@link #mine(List)}: parses, fingerprints and indexes the smiles in
+	 * batches, parsed molecules are not cached (memory is dominated by the fragment index and the
+	 * smiles strings)
+	 * 
+	 * @return number of skipped (invalid) smiles
+	 */
+	public int mine(Iterator<String> smiles) throws Exception
+	{
+		return mineStream(smiles, false);
+	}
+
+	/**
+	 * streaming alternative to {@link #mine(List)} for molecules read from sdf, each molecule is
+	 * converted to smiles (atom indices refer to the parsed smiles)
+	 * 
+	 * @return number of skipped (empty or invalid) molecules
+	 */
+	public int mineMolecules(Iterator<IAtomContainer> molecules) throws Exception
+	{
+		return mineStream(molecules, true);
+	}
+
+	protected int mineStream(Iterator<?> records, final boolean molecules) throws Exception
+	{
+		checkModifiable();
+		trainingDataSmiles = new ArrayList<>();
+		compoundAtoms = (storeAtoms && featureSelection != FeatureSelection.fold)
+				? new ArrayList<MoleculeFingerprint>()
+				: null;
+		collisions = null;
+
+		int numSkipped = 0;
+		int numRecords = 0;
+		final List<Object> batch = new ArrayList<>();
+		while (records.hasNext())
+		{
+			batch.clear();
+			while (records.hasNext() && batch.size() < STREAM_BATCH_SIZE * numThreads)
+				batch.add(records.next());
+			// parse in parallel, the molecules are only kept for the batch
+			final String batchSmiles[] = new String[batch.size()];
+			final IAtomContainer batchMols[] = new IAtomContainer[batch.size()];
+			ParallelBlocks.run(numThreads, batch.size(), new ParallelBlocks.Block<Void>()
+			{
+				@Override
+				public Void compute(int from, int to)
+				{
+					for (int i = from; i < to; i++)
+						batchMols[i] = parseRecord(batch.get(i), molecules, batchSmiles, i);
+					return null;
 				}
-			numCompounds++;
+			});
+			// records are checked before the batch is inserted
+			for (int i = 0; i < batch.size(); i++)
+				streamedRecord(numRecords + i, batchMols[i]);
+			numRecords += batch.size();
+			mineCompounds(batch.size(), new MoleculeSource()
+			{
+				@Override
+				public IAtomContainer getMolecule(int i)
+				{
+					return batchMols[i];
+				}
+			});
+			for (String smi : batchSmiles)
+			{
+				if (smi != null)
+					trainingDataSmiles.add(smi);
+				else
+					numSkipped++;
+			}
+			streamedBatch();
+		}
+		fragmentToCompound.optimize();
+		return numSkipped;
+	}
+
+	/**
+	 * parses a smiles or (re-parses) a molecule of a stream, the smiles is stored at index i
+	 * 
+	 * @return the molecule, null if the record is invalid
+	 */
+	private static IAtomContainer parseRecord(Object record, boolean molecule, String[] smiles,
+			int i)
+	{
+		try
+		{
+			String smi;
+			if (molecule)
+			{
+				if (((IAtomContainer) record).getAtomCount() == 0)
+					return null;
+				smi = new SmilesGenerator().create((IAtomContainer) record);
+			}
+			else
+				smi = (String) record;
+			IAtomContainer mol = CDKConverter.parseSmilesUncached(smi);
+			if (mol.getAtomCount() == 0)
+				return null;
+			smiles[i] = smi;
+			return mol;
+		}
+		catch (CDKException e)
+		{
+			return null;
 		}
 	}
 
-	private static <T1, T2> void insert(HashMap<T1, LinkedHashSet<T2>> map, T1 key, T2 val)
+	/**
+	 * called for each record of a stream in input order before the batch of the record is
+	 * inserted (an exception stops mining, the batch is not inserted)
+	 * 
+	 * @param record
+	 *            index of the record within the stream
+	 * @param mol
+	 *            the parsed (not cached) molecule, null if the record is invalid and is skipped
+	 */
+	protected void streamedRecord(int record, IAtomContainer mol) throws CDKException
+	{
+	}
+
+	/**
+	 * called after the compounds of a batch of a stream have been inserted
+	 */
+	protected void streamedBatch()
+	{
+	}
+
+	/**
+	 * adds the fragments of the next compound, compounds have to be inserted in order
+	 * 
+	 * @return sorted slots of the fragments of the compound (if requested)
+	 */
+	private int[] insert(MoleculeFingerprint m, boolean collectSlots)
 	{
-		if (!map.containsKey(key))
-			map.put(key, new LinkedHashSet<T2>());
-		map.get(key).add(val);
+		int slots[] = collectSlots ? new int[m.size()] : null;
+		int numSlots = 0;
+		if (featureSelection == FeatureSelection.fold)
+		{
+			BitSet bits = new BitSet(hashfoldsize);
+			for (int i = 0; i < m.size(); i++)
+				bits.set(fold(m.hashCodes[i]));
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+			{
+				fragmentToCompound.add(i, numCompounds);
+				if (collectSlots)
+					slots[numSlots++] = fragmentToCompound.slotOf(i);
+			}
+		}
+		else
+			for (int i = 0; i < m.size(); i++)
+			{
+				CFPFragment frag = new CFPFragment(m.hashCodes[i]);
+				fragmentToCompound.add(frag, numCompounds);
+				if (collectSlots)
+					slots[numSlots++] = fragmentToCompound.slotOf(frag);
+				boolean conflict = check(fragmentToIteration, frag, m.iterations[i]);
+				conflict |= check(fragmentToNumAtoms, frag, m.numAtoms[i]);
+				if (conflict)
+					numUnfoldedConflicts++;
+			}
+		if (compoundAtoms != null)
+			compoundAtoms.add(m);
+		numCompounds++;
+
+		if (!collectSlots)
+			return null;
+		Arrays.sort(slots, 0, numSlots);
+		int n = 0;
+		for (int i = 0; i < numSlots; i++)
+			if (n == 0 || slots[n - 1] != slots[i])
+				slots[n++] = slots[i];
+		return Arrays.copyOf(slots, n);
 	}
 
 	private static <T> boolean check(HashMap<T, Integer> map, T key, int val)
@@ -306,233 +1018,589 @@ public class BasicCFPMiner implements Serializable
 		return false;
 	}
 
-	public LinkedHashSet<Integer> getCompoundsForFragment(CFPFragment fragment)
+	/**
+	 * @return read-only view of the compounds of the fragment (ascending), null if the fragment is
+	 *         not contained
+	 */
+	public Set<Integer> getCompoundsForFragment(CFPFragment fragment)
 	{
-		return fragmentToCompound.get(fragment);
+		CompoundSet compounds = fragmentToCompound.get(fragment);
+		return compounds == null ? null : Collections.unmodifiableSet(compounds);
 	}
 
-	public LinkedHashSet<CFPFragment> getFragmentsForCompound(Integer compound)
+	/**
+	 * for each compound the sorted slots of its fragments (built on first use)
+	 */
+	private int[][] getCompoundToSlots()
 	{
-		if (compoundToFragment == null)
+		int c2f[][] = compoundToFragment;
+		if (c2f == null)
 		{
-			compoundToFragment = new HashMap<Integer, LinkedHashSet<CFPFragment>>();
-			for (CFPFragment f : fragmentToCompound.keySet())
-				for (Integer c : fragmentToCompound.get(f))
-					insert(compoundToFragment, c, f);
+			c2f = fragmentToCompound.compoundToSlots(numCompounds);
+			compoundToFragment = c2f;
 		}
-		if (compoundToFragment.containsKey(compound))
-			return compoundToFragment.get(compound);
-		else
-			return new LinkedHashSet<CFPFragment>();
+		return c2f;
+	}
+
+	/**
+	 * @return read-only view of the fragments of the compound (in fragment order)
+	 */
+	public Set<CFPFragment> getFragmentsForCompound(Integer compound)
+	{
+		return fragmentToCompound.fragments(getCompoundToSlots()[compound]);
 	}
 
 	public double getTanimotoSimilarity(int i, int j)
 	{
-		HashSet<CFPFragment> h1 = getFragmentsForCompound(i);
-		HashSet<CFPFragment> h2 = getFragmentsForCompound(j);
-		int and = SetUtil.intersectSize(h1, h2);
-		int or = h1.size() + h2.size() - and;
+		int c2f[][] = getCompoundToSlots();
+		return tanimoto(c2f[i], c2f[j]);
+	}
+
+	/**
+	 * tanimoto similarity of two sorted slot arrays (merge)
+	 */
+	private static double tanimoto(int[] a, int[] b)
+	{
+		int and = 0;
+		int i = 0;
+		int j = 0;
+		while (i < a.length && j < b.length)
+		{
+			if (a[i] < b[j])
+				i++;
+			else if (a[i] > b[j])
+				j++;
+			else
+			{
+				and++;
+				i++;
+				j++;
+			}
+		}
+		int or = a.length + b.length - and;
 		return and / (double) or;
 	}
 
+	/**
+	 * tanimoto similarity of all pairs of training compounds, computed in parallel (numThreads)
+	 * 
+	 * @return upper triangle of the similarity matrix without diagonal, row by row (i.e. n*(n-1)/2
+	 *         values), see {@link #similarityIndex(int, int, int)}
+	 */
+	public float[] similarityMatrix()
+	{
+		final int n = numCompounds;
+		final int c2f[][] = getCompoundToSlots();
+		final float matrix[] = new float[similarityMatrixSize(n)];
+		// rows get shorter, row r is computed together with row n-1-r to balance the blocks
+		ParallelBlocks.run(numThreads, (n + 1) / 2, new ParallelBlocks.Block<Void>()
+		{
+			@Override
+			public Void compute(int from, int to)
+			{
+				for (int r = from; r < to; r++)
+				{
+					computeRow(r);
+					if (n - 1 - r != r)
+						computeRow(n - 1 - r);
+				}
+				return null;
+			}
+
+			private void computeRow(int i)
+			{
+				int idx = similarityIndex(i, i + 1, n);
+				for (int j = i + 1; j < n; j++)
+					matrix[idx++] = (float) tanimoto(c2f[i], c2f[j]);
+			}
+		});
+		return matrix;
+	}
+
+	/**
+	 * length of {@link #similarityMatrix()} for n compounds, n*(n-1)/2 (computed as long, as it
+	 * exceeds int for n > 46341 even if the result still fits)
+	 */
+	public static int similarityMatrixSize(int n)
+	{
+		long size = (long) n * (n - 1) / 2;
+		if (size > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("too many compounds for a similarity matrix: " + n);
+		return (int) size;
+	}
+
+	/**
+	 * position of compound pair (i, j) in {@link #similarityMatrix()} of n compounds
+	 */
+	public static int similarityIndex(int i, int j, int n)
+	{
+		if (i == j)
+			throw new IllegalArgumentException("diagonal is not stored: " + i);
+		if (i > j)
+			return similarityIndex(j, i, n);
+		return (int) ((long) i * n - (long) i * (i + 1) / 2 + (j - i - 1));
+	}
+
 	public CFPFragment getFragmentViaIdx(int fragmentIdx)
 	{
-		if (fragmentList == null)
+		CFPFragment list[] = fragmentList;
+		if (list == null)
 		{
-			fragmentList = new CFPFragment[fragmentToCompound.size()];
+			// built completely before it is published (concurrent readers)
+			list = new CFPFragment[fragmentToCompound.size()];
 			int idx = 0;
 			for (CFPFragment h : fragmentToCompound.keySet())
-				fragmentList[idx++] = h;
+				list[idx++] = h;
+			fragmentList = list;
 		}
-		return fragmentList[fragmentIdx];
+		return list[fragmentIdx];
 	}
 
 	public Integer getIdxForFragment(CFPFragment frag)
 	{
-		if (fragmentToIdx == null)
+		HashMap<CFPFragment, Integer> map = fragmentToIdx;
+		if (map == null)
 		{
-			fragmentToIdx = new HashMap<>();
+			map = new HashMap<>();
 			int idx = 0;
 			for (CFPFragment h : fragmentToCompound.keySet())
-				fragmentToIdx.put(h, idx++);
+				map.put(h, idx++);
+			fragmentToIdx = map;
 		}
-		return fragmentToIdx.get(frag);
+		return map.get(frag);
 	}
 
-	transient HashMap<String, HashMap<CFPFragment, LinkedHashSet<CFPFragment>>> includedFragments;
+	transient volatile BoundedCache<String, HashMap<CFPFragment, LinkedHashSet<CFPFragment>>>
+			includedFragments;
 
+	/**
+	 * @return fragments of the test compound whose atoms are included in the atoms of fragment f
+	 *         (in the test compound), null if there are none
+	 */
 	public Set<CFPFragment> getIncludedFragments(CFPFragment f, String smiles) throws CDKException
 	{
-		if (includedFragments == null || !includedFragments.containsKey(smiles))
-			mineIncludedFragments(smiles);
-		return includedFragments.get(smiles).get(f);
+		HashMap<CFPFragment, LinkedHashSet<CFPFragment>> map = includedFragmentsCache().get(smiles);
+		if (map == null)
+		{
+			map = mineIncludedFragments(smiles);
+			includedFragmentsCache().put(smiles, map);
+		}
+		return map.get(f);
 	}
 
-	private void mineIncludedFragments(String smiles) throws CDKException
+	/**
+	 * max number of test compounds whose included fragments are cached, least recently used
+	 * compounds are evicted
+	 */
+	public void setIncludedCacheSize(int includedCacheSize)
 	{
-		HashMap<CFPFragment, LinkedHashSet<CFPFragment>> map = new HashMap<>();
+		this.includedCacheSize = includedCacheSize;
+		includedFragments = null;
+	}
 
-		IAtomContainer mol = CDKConverter.parseSmiles(smiles);
-		List<CFPFragment> frags = new ArrayList<>();
-		for (CFPFragment f : getFragmentsForTestCompound(mol))
-			if (fragmentToCompound.containsKey(f))
-				frags.add(f);
+	public int getIncludedCacheSize()
+	{
+		return includedCacheSize;
+	}
 
-		for (int i1 = 0; i1 < frags.size() - 1; i1++)
-		{
-			CFPFragment f1 = frags.get(i1);
-			Set<Integer> a1 = getAtomsMultiple(mol, f1);
+	/**
+	 * @return included fragments cache (for hit-rate statistics)
+	 */
+	public BoundedCache<?, ?> getIncludedFragmentsCache()
+	{
+		return includedFragmentsCache();
+	}
 
-			for (int i2 = i1 + 1; i2 < frags.size(); i2++)
+	private BoundedCache<String, HashMap<CFPFragment, LinkedHashSet<CFPFragment>>>
+			includedFragmentsCache()
+	{
+		BoundedCache<String, HashMap<CFPFragment, LinkedHashSet<CFPFragment>>> cache;
+		cache = includedFragments;
+		if (cache == null)
+		{
+			synchronized (this)
 			{
-				CFPFragment f2 = frags.get(i2);
-				Set<Integer> a2 = getAtomsMultiple(mol, f2);
+				cache = includedFragments;
+				if (cache == null)
+				{
+					cache = new BoundedCache<>(includedCacheSize);
+					includedFragments = cache;
+				}
+			}
+		}
+		return cache;
+	}
+
+	/**
+	 * fragment f2 is included in f1 if the atoms of all occurrences of f2 are a subset of the atoms
+	 * of all occurrences of f1 (if the atoms are equal, the later fragment is included in the
+	 * earlier one)
+	 * 
+	 * uses a containment index of the molecule: for each atom the fragments that contain it, the
+	 * fragments included in f1 are the fragments that contain none of the atoms outside f1
+	 */
+	private HashMap<CFPFragment, LinkedHashSet<CFPFragment>> mineIncludedFragments(String smiles)
+			throws CDKException
+	{
+		if (featureSelection == FeatureSelection.fold)
+			throw new IllegalArgumentException();
+		// only the result is cached (see getIncludedFragments)
+		MoleculeFingerprint m = getQueryFingerprint(smiles);
 
-				if (SetUtil.isSubSet(a1, a2))
-					insert(map, f1, f2);
-				else if (SetUtil.isSubSet(a2, a1))
-					insert(map, f2, f1);
+		// fragments of the index (in order of the fingerprint) with the atoms of all occurrences
+		HashMap<Integer, Integer> fragIdx = new HashMap<>();
+		List<CFPFragment> frags = new ArrayList<>();
+		List<long[]> atoms = new ArrayList<>();
+		for (int i = 0; i < m.size(); i++)
+		{
+			if (fragmentToCompound.slotOf(m.hashCodes[i]) == -1)
+				continue;
+			Integer idx = fragIdx.get(m.hashCodes[i]);
+			if (idx == null)
+			{
+				idx = frags.size();
+				fragIdx.put(m.hashCodes[i], idx);
+				frags.add(new CFPFragment(m.hashCodes[i]));
+				atoms.add(new long[CompoundSet.numWords(m.atomCount)]);
+			}
+			long bits[] = atoms.get(idx);
+			for (int j = m.atomOffsets[i]; j < m.atomOffsets[i + 1]; j++)
+				bits[m.atoms[j] >>> 6] |= 1L << m.atoms[j];
+		}
+		int n = frags.size();
+		int numAtoms[] = new int[n];
+		long fragsWithAtom[][] = new long[m.atomCount][CompoundSet.numWords(n)];
+		for (int f = 0; f < n; f++)
+		{
+			long bits[] = atoms.get(f);
+			for (int w = 0; w < bits.length; w++)
+			{
+				numAtoms[f] += Long.bitCount(bits[w]);
+				for (long word = bits[w]; word != 0; word &= word - 1)
+					fragsWithAtom[(w << 6) + Long.numberOfTrailingZeros(word)][f >>> 6] |= 1L << f;
 			}
 		}
-		//		for (int i = 0; i < frags.size(); i++)
-		//			System.out.println("included in " + frags.get(i) + " : " + map.get(frags.get(i)));
 
-		if (includedFragments == null)
-			includedFragments = new HashMap<>();
-		includedFragments.put(smiles, map);
+		HashMap<CFPFragment, LinkedHashSet<CFPFragment>> map = new HashMap<>();
+		long included[] = new long[CompoundSet.numWords(n)];
+		for (int f1 = 0; f1 < n; f1++)
+		{
+			Arrays.fill(included, -1L);
+			long bits[] = atoms.get(f1);
+			for (int a = 0; a < m.atomCount; a++)
+				if ((bits[a >>> 6] & (1L << a)) == 0)
+					for (int w = 0; w < included.length; w++)
+						included[w] &= ~fragsWithAtom[a][w];
+			LinkedHashSet<CFPFragment> set = null;
+			for (int w = 0; w < included.length; w++)
+				for (long word = included[w]; word != 0; word &= word - 1)
+				{
+					int f2 = (w << 6) + Long.numberOfTrailingZeros(word);
+					if (f2 >= n)
+						break;
+					// subset with the same number of atoms: equal atoms
+					if (f2 == f1 || (f2 < f1 && numAtoms[f2] == numAtoms[f1]))
+						continue;
+					if (set == null)
+						set = new LinkedHashSet<>();
+					set.add(frags.get(f2));
+				}
+			if (set != null)
+				map.put(frags.get(f1), set);
+		}
+		return map;
 	}
 
+	/**
+	 * @return view of the fragments that are included in the fragment (in fragment order), null if
+	 *         there are none
+	 */
 	public Set<CFPFragment> getSubFragments(CFPFragment frag) throws CDKException
 	{
-		if (subFragments == null)
-			mineSubAndSuperFragments();
-		return subFragments.get(frag);
+		return mineSubAndSuperFragments().getSubFragments(frag);
 	}
 
+	/**
+	 * @return view of the fragments that include the fragment (in fragment order), null if there
+	 *         are none
+	 */
 	public Set<CFPFragment> getSuperFragments(CFPFragment frag) throws CDKException
 	{
-		if (superFragments == null)
-			mineSubAndSuperFragments();
-		return superFragments.get(frag);
+		return mineSubAndSuperFragments().getSuperFragments(frag);
 	}
 
-	private void mineSubAndSuperFragments() throws CDKException
+	private FragmentHierarchy mineSubAndSuperFragments()
 	{
-		if (subFragments != null)
-			throw new IllegalArgumentException();
-		subFragments = new HashMap<CFPFragment, LinkedHashSet<CFPFragment>>();
-		superFragments = new HashMap<CFPFragment, LinkedHashSet<CFPFragment>>();
-
-		for (int i = 0; i < getNumFragments(); i++)
+		FragmentHierarchy h = hierarchy;
+		if (h == null)
 		{
-			// get atom-matches of fragment in arbitrary mol where this fragment matches
-			// (we are looking for sub-fragments of this fragment, they are in each mol) 
-			CFPFragment f1 = getFragmentViaIdx(i);
-			Integer mol = getCompoundsForFragment(f1).iterator().next();
-			IAtomContainer molC = CDKConverter.parseSmiles(trainingDataSmiles.get(mol));
-
-			Set<Set<Integer>> atoms1 = getAtomsMultipleDistinct(molC, f1);
-			int numAtoms1 = atoms1.iterator().next().size();
-			int numMatches1 = atoms1.size();
-
-			// get all other fragments that match this mol
-			for (CFPFragment f2 : getFragmentsForCompound(mol))
+			synchronized (this)
 			{
-				if (f1.equals(f2))
-					continue;
-				// get atom-matches for other fragment
-				Set<Set<Integer>> atoms2 = getAtomsMultipleDistinct(molC, f2);
-				int numAtoms2 = atoms2.iterator().next().size();
-				int numMatches2 = atoms2.size();
-
-				if (numAtoms2 < numAtoms1 && numMatches2 >= numMatches1)
+				h = hierarchy;
+				if (h == null)
 				{
-					boolean included2in1 = true;
-					for (Set<Integer> subSet1 : atoms1)
-					{
-						boolean found = false;
-						for (Set<Integer> subSet2 : atoms2)
-						{
-							if (SetUtil.isSubSet(subSet1, subSet2))
-							{
-								found = true;
-								break;
-							}
-						}
-						if (!found)
-						{
-							included2in1 = false;
-							break;
-						}
-					}
-					if (included2in1)
-					{
-						insert(subFragments, f1, f2);
-						insert(superFragments, f2, f1);
-					}
+					long start = stageStart();
+					h = new FragmentHierarchy(this, fragmentToCompound, getCompoundToSlots(),
+							numThreads);
+					stageFinished(CFPMinerListener.Stage.hierarchy, start,
+							fragmentToCompound.size());
+					// published when complete (concurrent readers)
+					hierarchy = h;
 				}
 			}
 		}
-		//		System.out.println("mined sub and super");
-		//		for (int i = 0; i < getNumFragments() - 1; i++)
-		//		{
-		//			System.out.println("\n\n" + (i + 1));
-		//			System.out.println("sub fragments:");
-		//			if (subFragments.get(getFragmentViaIdx(i)) != null)
-		//				for (CFPFragment f : subFragments.get(getFragmentViaIdx(i)))
-		//					System.out.print((getIdxForFragment(f) + 1) + " ");
-		//			System.out.println("\nsuper fragments:");
-		//			if (superFragments.get(getFragmentViaIdx(i)) != null)
-		//				for (CFPFragment f : superFragments.get(getFragmentViaIdx(i)))
-		//					System.out.print((getIdxForFragment(f) + 1) + " ");
-		//		}
-		//		System.out.println("\n");
+		return h;
 	}
 
 	public LinkedHashSet<CFPFragment> getFragmentsForTestCompound(String smiles) throws CDKException
 	{
-		return getFragmentsForTestCompound(CDKConverter.parseSmiles(smiles));
+		return getFragmentsForTestCompound(CDKConverter.parseSmilesUncached(smiles));
 	}
 
+	/**
+	 * the cached result is returned if the test compound cache is enabled (do not modify it)
+	 */
 	public LinkedHashSet<CFPFragment> getFragmentsForTestCompound(IAtomContainer testMol)
 			throws CDKException
 	{
-		if (testMoleculeToFragment == null)
-			testMoleculeToFragment = new HashMap<IAtomContainer, LinkedHashSet<CFPFragment>>();
-		if (!testMoleculeToFragment.containsKey(testMol))
-		{
-			if (fp == null)
-				initCircularFingerprinter();
-			LinkedHashSet<CFPFragment> fragments = new LinkedHashSet<CFPFragment>();
-			IBitFingerprint finger = fp.getBitFingerprint(testMol);
-			if (featureSelection == FeatureSelection.fold)
-				for (int i : finger.getSetbits())
-					fragments.add(new CFPFragment(i));
-			else
-				for (int i = 0; i < fp.getFPCount(); i++)
+		BoundedCache<String, LinkedHashSet<CFPFragment>> cache = testCompoundCache();
+		if (cache == null)
+			return computeFragmentsForTestCompound(testMol);
+		String key;
+		try
+		{
+			key = testCacheKey == TestCacheKey.inchiKey ? CDKConverter.toInchiKey(testMol)
+					: CDKConverter.toCanonicalSmiles(testMol);
+		}
+		catch (CDKException e)
+		{
+			// structure cannot be canonicalized, do not cache
+			return computeFragmentsForTestCompound(testMol);
+		}
+		LinkedHashSet<CFPFragment> fragments = cache.get(key);
+		if (fragments == null)
+		{
+			count(CFPMinerListener.Counter.testCacheMisses, 1);
+			fragments = computeFragmentsForTestCompound(testMol);
+			cache.put(key, fragments);
+		}
+		else
+			count(CFPMinerListener.Counter.testCacheHits, 1);
+		return fragments;
+	}
+
+	private LinkedHashSet<CFPFragment> computeFragmentsForTestCompound(IAtomContainer testMol)
+			throws CDKException
+	{
+		// not using the shared fingerprinter (thread-safety, collisions are only counted for training compounds)
+		CircularFingerprinter testFP = new CircularFingerprinter(type.getClassType());
+		testFP.calculate(testMol);
+		LinkedHashSet<CFPFragment> fragments = new LinkedHashSet<CFPFragment>();
+		if (featureSelection == FeatureSelection.fold)
+		{
+			BitSet bits = new BitSet(hashfoldsize);
+			for (int i = 0; i < testFP.getFPCount(); i++)
+				bits.set(fold(testFP.getFP(i).hashCode, hashfoldsize));
+			for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1))
+				fragments.add(new CFPFragment(i));
+		}
+		else
+			for (int i = 0; i < testFP.getFPCount(); i++)
+			{
+				CFPFragment frag = new CFPFragment(testFP.getFP(i).hashCode);
+				if (fragmentToCompound.containsKey(frag))
+					fragments.add(frag);
+			}
+		return fragments;
+	}
+
+	public static enum TestCacheKey
+	{
+		canonicalSmiles, inchiKey
+	}
+
+	/**
+	 * enables caching the fragments of test compounds (disabled by default, i.e. size 0),
+	 * compounds are identified by canonical smiles or inchi key, least recently used compounds are
+	 * evicted
+	 */
+	public void setTestCacheSize(int testCacheSize)
+	{
+		this.testCacheSize = testCacheSize;
+		testCompoundCache = null;
+	}
+
+	public int getTestCacheSize()
+	{
+		return testCacheSize;
+	}
+
+	public void setTestCacheKey(TestCacheKey testCacheKey)
+	{
+		this.testCacheKey = testCacheKey;
+		testCompoundCache = null;
+	}
+
+	public TestCacheKey getTestCacheKey()
+	{
+		return testCacheKey;
+	}
+
+	/**
+	 * @return test compound cache (for hit-rate statistics), null if disabled
+	 */
+	public BoundedCache<?, ?> getTestCompoundCache()
+	{
+		return testCompoundCache();
+	}
+
+	private BoundedCache<String, LinkedHashSet<CFPFragment>> testCompoundCache()
+	{
+		BoundedCache<String, LinkedHashSet<CFPFragment>> cache = testCompoundCache;
+		// disabled cache: no locking either
+		if (cache == null && testCacheSize > 0)
+		{
+			synchronized (this)
+			{
+				cache = testCompoundCache;
+				if (cache == null)
 				{
-					CFPFragment frag = new CFPFragment(fp.getFP(i).hashCode);
-					if (fragmentToCompound.containsKey(frag))
-						fragments.add(frag);
+					cache = new BoundedCache<>(testCacheSize);
+					testCompoundCache = cache;
 				}
-			testMoleculeToFragment.put(testMol, fragments);
+			}
 		}
-		return testMoleculeToFragment.get(testMol);
+		return cache;
+	}
+
+	protected void clearTestCompoundCache()
+	{
+		if (testCompoundCache != null)
+			testCompoundCache.clear();
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * sparse feature vectors of test compounds: for each compound the ascending column indices
+	 * (see {@link #getIdxForFragment(CFPFragment)}) of its fragments, fragments that are not in the
+	 * (filtered) fragment index are ignored
+	 * 
+	 * runs in parallel (see {@link #setNumThreads(int)}), molecules and results are not cached,
+	 * invalid smiles cause a RuntimeException (wrapping the CDKException)
+	 */
+	public int[][] featurize(final List<String> smiles)
+	{
+		final FragmentIndex index = fragmentToCompound;
+		final int slotToIdx[] = new int[index.getNumSlots()];
+		int idx = 0;
+		for (int s = index.nextSlot(0); s != -1; s = index.nextSlot(s + 1))
+			slotToIdx[s] = idx++;
+		final boolean fold = featureSelection == FeatureSelection.fold;
+		final int res[][] = new int[smiles.size()][];
+		ParallelBlocks.run(numThreads, smiles.size(), new ParallelBlocks.Block<Void>()
+		{
+			@Override
+			public Void compute(int from, int to) throws Exception
+			{
+				CircularFingerprinter blockFP = new CircularFingerprinter(type.getClassType());
+				int cols[] = new int[64];
+				for (int i = from; i < to; i++)
+				{
+					blockFP.calculate(CDKConverter.parseSmilesUncached(smiles.get(i)));
+					int n = 0;
+					for (int j = 0; j < blockFP.getFPCount(); j++)
+					{
+						int id = blockFP.getFP(j).hashCode;
+						int slot = index.slotOf(fold ? fold(id, hashfoldsize) : id);
+						if (slot == -1)
+							continue;
+						if (n == cols.length)
+							cols = Arrays.copyOf(cols, n * 2);
+						cols[n++] = slotToIdx[slot];
+					}
+					Arrays.sort(cols, 0, n);
+					int distinct = 0;
+					for (int j = 0; j < n; j++)
+						if (distinct == 0 || cols[j] != cols[distinct - 1])
+							cols[distinct++] = cols[j];
+					res[i] = Arrays.copyOf(cols, distinct);
+				}
+				return null;
+			}
+		});
+		return res;
+	}
+
+	/**
+	 * builds all derived indices (compound to fragment index, fragment list and indices, sub- and
+	 * super-fragments) so that the query methods do not modify the miner anymore and can be called
+	 * concurrently without locking, mining, appending and filtering are disabled afterwards
+	 * 
+	 * the miner has to be handed to other threads after freezing (e.g. via an executor)
+	 */
+	public void freeze() throws CDKException
+	{
+		if (trainingDataSmiles == null)
+			throw new IllegalStateException("nothing mined yet, call mine() first");
+		frozen = true;
+		atomsCache();
+		includedFragmentsCache();
+		testCompoundCache();
+		if (numCompounds > 0)
+			getFragmentsForCompound(0);
+		if (getNumFragments() > 0)
+		{
+			getFragmentViaIdx(0);
+			getIdxForFragment(getFragmentViaIdx(0));
+			if (featureSelection != FeatureSelection.fold)
+				mineSubAndSuperFragments();
+		}
+	}
+
+	public boolean isFrozen()
+	{
+		return frozen;
+	}
+
+	/**
+	 * modifiable copy of the miner (of frozen and memory-mapped miners as well), the mined data and
+	 * settings are copied, derived indices and caches are rebuilt on demand
+	 */
 	public BasicCFPMiner clone()
 	{
 		BasicCFPMiner f = new BasicCFPMiner();
+		copyTo(f);
+		return f;
+	}
+
+	protected void copyTo(BasicCFPMiner f)
+	{
 		f.type = type;
 		f.hashfoldsize = hashfoldsize;
 		f.featureSelection = featureSelection;
 		f.absMinFreq = absMinFreq;
+		f.numThreads = numThreads;
+		f.storeAtoms = storeAtoms;
+		f.atomsCacheSize = atomsCacheSize;
+		f.trackCollisions = trackCollisions;
+		f.testCacheSize = testCacheSize;
+		f.testCacheKey = testCacheKey;
+		f.includedCacheSize = includedCacheSize;
+		f.listener = listener;
+
 		f.numCompounds = numCompounds;
-		for (CFPFragment frag : fragmentToCompound.keySet())
-			f.fragmentToCompound.put(frag,
-					(LinkedHashSet<Integer>) fragmentToCompound.get(frag).clone());
-		return f;
+		f.numUnfoldedConflicts = numUnfoldedConflicts;
+		if (trainingDataSmiles != null)
+			f.trainingDataSmiles = new ArrayList<>(trainingDataSmiles);
+		f.fragmentToCompound = fragmentToCompound.clone();
+		if (fragmentToIteration != null)
+			f.fragmentToIteration = new HashMap<>(fragmentToIteration);
+		if (fragmentToNumAtoms != null)
+			f.fragmentToNumAtoms = new HashMap<>(fragmentToNumAtoms);
+		// fingerprints are not modified after mining
+		if (compoundAtoms != null)
+			f.compoundAtoms = new ArrayList<>(compoundAtoms);
+		if (collisions != null)
+			f.collisions = new CollisionCounter(collisions);
 	}
 
 	public int getNumCompounds()
@@ -588,7 +1656,7 @@ public class BasicCFPMiner implements Serializable
 			set.setResultValue(idx, "mean fragments per compound",
 					DoubleArraySummary.create(numFragments));
 
-			if (featureSelection == FeatureSelection.fold)
+			if (featureSelection == FeatureSelection.fold && trackCollisions)
 			{
 				estimateCollisions(set, idx, "");
 			}
@@ -598,28 +1666,29 @@ public class BasicCFPMiner implements Serializable
 
 	public void estimateCollisions(ResultSet set, int idx, String prefix)
 	{
-		List<Integer> counts = new ArrayList<Integer>();
-		List<String> countsStr = new ArrayList<String>();
+		if (!trackCollisions)
+			throw new IllegalStateException("collision tracking is disabled");
 		int numCollisions = 0;
 		int numBits = 0;
-		for (int i = 0; i < hashfoldsize; i++)
-			if (collisionMap.containsKey(i))
+		long sum = 0;
+		if (collisions != null)
+			for (int i = 0; i < hashfoldsize; i++)
 			{
-				if (collisionMap.get(i).size() > 1)
-					numCollisions++;
-				numBits++;
-				counts.add(collisionMap.get(i).size());
-				countsStr.add(collisionMap.get(i).size() + "");
+				int count = collisions.getCount(i);
+				if (count > 0)
+				{
+					if (count > 1)
+						numCollisions++;
+					numBits++;
+					sum += count;
+				}
 			}
-			else
-				countsStr.add("0");
 
 		//		set.setResultValue(idx, prefix + "collisions", numCollisions + "/" + numBits);
 		set.setResultValue(idx, prefix + "collisions", (double) numCollisions / numBits);
 
 		//		set.setResultValue(idx, prefix + "collision ratio", numCollisions / (double) numBits);
-		DoubleArraySummary occu = DoubleArraySummary.create(counts);
-		set.setResultValue(idx, prefix + "bit-load", occu.getMean());
+		set.setResultValue(idx, prefix + "bit-load", numBits == 0 ? 0 : sum / (double) numBits);
 
 		//		CountedSet<String> occuStr = CountedSet.create(countsStr);
 		//		for (Integer f : new int[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 })
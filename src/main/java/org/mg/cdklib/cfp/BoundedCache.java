@@ -0,0 +1,154 @@
+package org.mg.cdklib.cfp;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * thread-safe cache with a maximum number of entries and least-recently-used eviction
+ *
+ * the entries are distributed over segments (each a synchronized access-ordered LinkedHashMap)
+ * to reduce lock contention, hits/misses/evictions are counted for sizing the cache
+ */
+public class BoundedCache<K, V>
+{
+	private static final int NUM_SEGMENTS = 16;
+
+	private final int maxSize;
+	private final Segment<K, V>[] segments;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static class Segment<K, V> extends LinkedHashMap<K, V>
+	{
+		private static final long serialVersionUID = 1L;
+
+		final int maxSize;
+		final AtomicLong evictions;
+
+		Segment(int maxSize, AtomicLong evictions)
+		{
+			super(16, 0.75f, true);
+			this.maxSize = maxSize;
+			this.evictions = evictions;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<K, V> eldest)
+		{
+			if (size() > maxSize)
+			{
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	public BoundedCache(int maxSize)
+	{
+		if (maxSize < 1)
+			throw new IllegalArgumentException("max size must be >= 1: " + maxSize);
+		this.maxSize = maxSize;
+		// small caches use a single segment, so that eviction is (nearly) exact lru
+		int numSegments = Math.max(1, Math.min(NUM_SEGMENTS, maxSize / 64));
+		@SuppressWarnings("unchecked")
+		Segment<K, V> s[] = (Segment<K, V>[]) new Segment<?, ?>[numSegments];
+		segments = s;
+		for (int i = 0; i < numSegments; i++)
+			segments[i] = new Segment<K, V>(
+					maxSize / numSegments + (i < maxSize % numSegments ? 1 : 0), evictions);
+	}
+
+	private Segment<K, V> segment(Object key)
+	{
+		int h = key.hashCode();
+		h ^= h >>> 16;
+		return segments[(h & 0x7FFFFFFF) % segments.length];
+	}
+
+	/**
+	 * @return cached value, null if not cached
+	 */
+	public V get(K key)
+	{
+		Segment<K, V> s = segment(key);
+		V v;
+		synchronized (s)
+		{
+			v = s.get(key);
+		}
+		if (v == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return v;
+	}
+
+	public void put(K key, V value)
+	{
+		if (value == null)
+			throw new IllegalArgumentException("null values are not supported");
+		Segment<K, V> s = segment(key);
+		synchronized (s)
+		{
+			s.put(key, value);
+		}
+	}
+
+	public void clear()
+	{
+		for (Segment<K, V> s : segments)
+			synchronized (s)
+			{
+				s.clear();
+			}
+	}
+
+	public int size()
+	{
+		int n = 0;
+		for (Segment<K, V> s : segments)
+			synchronized (s)
+			{
+				n += s.size();
+			}
+		return n;
+	}
+
+	public int getMaxSize()
+	{
+		return maxSize;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	public double getHitRate()
+	{
+		long h = hits.get();
+		long m = misses.get();
+		return h + m == 0 ? 0 : h / (double) (h + m);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "size: " + size() + "/" + maxSize + ", hits: " + getHits() + ", misses: "
+				+ getMisses() + ", evictions: " + getEvictions();
+	}
+}
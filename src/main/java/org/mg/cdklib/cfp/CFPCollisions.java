@@ -1,6 +1,8 @@
 package org.mg.cdklib.cfp;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.mg.cdklib.data.CDKDataset;
 import org.mg.cdklib.data.DataProvider;
@@ -23,35 +25,46 @@ public class CFPCollisions
 			System.out.println(dCount + ": " + name);
 			CDKDataset d = DataProvider.getDataset(name);
 
-			for (CFPType type : types)
+			// fingerprint each compound only once for all types and fold sizes
+			int sizes[] = new int[] { 1024, 2048, 4096, 8192 };
+			CFPMiner miners[] = new CFPMiner[types.length];
+			CFPMiner folded[][] = new CFPMiner[types.length][sizes.length];
+			List<BasicCFPMiner> all = new ArrayList<>();
+			for (int t = 0; t < types.length; t++)
+			{
+				miners[t] = new CFPMiner(d.getEndpoints());
+				miners[t].type = types[t];
+				miners[t].featureSelection = FeatureSelection.filt;
+				miners[t].hashfoldsize = 1024;
+				all.add(miners[t]);
+
+				for (int s = 0; s < sizes.length; s++)
+				{
+					folded[t][s] = new CFPMiner(d.getEndpoints());
+					folded[t][s].type = types[t];
+					folded[t][s].featureSelection = FeatureSelection.fold;
+					folded[t][s].hashfoldsize = sizes[s];
+					all.add(folded[t][s]);
+				}
+			}
+			BasicCFPMiner.mineMultiple(d.getSmiles(), all.toArray(new BasicCFPMiner[all.size()]));
+
+			for (int t = 0; t < types.length; t++)
 			{
 				//			if (!name.startsWith("CPDBAS") && !name.startsWith("AMES") && !name.startsWith("NCTRER"))
 				//				continue;
 
-				System.out.println(type);
+				System.out.println(types[t]);
 
 				int idx = res.addResult();
 
-				CFPMiner miner = new CFPMiner(d.getEndpoints());
-				miner.type = type;
-				miner.featureSelection = FeatureSelection.filt;
-				miner.hashfoldsize = 1024;
-				miner.mine(d.getSmiles());
-
 				res.setResultValue(idx, "Dataset", name);
-				res.setResultValue(idx, "Type", type + "");
-				res.setResultValue(idx, "Compounds", miner.getNumCompounds());
-				res.setResultValue(idx, "Fragments", miner.getNumFragments());
+				res.setResultValue(idx, "Type", types[t] + "");
+				res.setResultValue(idx, "Compounds", miners[t].getNumCompounds());
+				res.setResultValue(idx, "Fragments", miners[t].getNumFragments());
 
-				for (int size : new int[] { 1024, 2048, 4096, 8192 })
-				{
-					miner = new CFPMiner(d.getEndpoints());
-					miner.type = type;
-					miner.featureSelection = FeatureSelection.fold;
-					miner.hashfoldsize = size;
-					miner.mine(d.getSmiles());
-					miner.estimateCollisions(res, idx, size + " ");
-				}
+				for (int s = 0; s < sizes.length; s++)
+					folded[t][s].estimateCollisions(res, idx, sizes[s] + " ");
 			}
 
 			res.sortResults("Dataset");
@@ -1,13 +1,11 @@
 package org.mg.cdklib.cfp;
 
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.LinkedHashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -15,7 +13,6 @@ import org.apache.commons.math3.stat.inference.TestUtils;
 import org.mg.cdklib.CDKConverter;
 import org.mg.cdklib.data.DataLoader;
 import org.mg.javalib.util.CountedSet;
-import org.mg.javalib.util.SetUtil;
 import org.openscience.cdk.exception.CDKException;
 import org.openscience.cdk.interfaces.IAtomContainer;
 
@@ -28,15 +25,34 @@ public class CFPMiner extends BasicCFPMiner
 	protected List<String> endpoints;
 	protected HashMap<String, String> trainingUniqsToEndpoint;
 
-	transient LinkedHashMap<CFPFragment, LinkedHashSet<Integer>> fragmentToCompound_unfiltered;
-	transient String[] classValues;
-	transient Integer activeIdx;
+	/**
+	 * created by the first applyFilter() call, holds the unfiltered fragments
+	 */
+	transient FilterSession filterSession;
+	transient volatile String[] classValues;
+	transient volatile Integer activeIdx;
+
+	/**
+	 * while streaming: the endpoints of the records, the unique smiles and endpoints of the current
+	 * batch
+	 */
+	private transient List<String> recordEndpoints;
+	private transient HashMap<String, String> batchUniqs;
+	private transient List<String> batchEndpoints;
+	private transient int numStreamRecords;
 
 	public CFPMiner(List<String> endpoints) throws CDKException
 	{
 		this.endpoints = endpoints;
 	}
 
+	@Override
+	public void freeze() throws CDKException
+	{
+		super.freeze();
+		getClassValues();
+	}
+
 	public String[] getClassValues()
 	{
 		if (classValues == null)
@@ -56,20 +72,225 @@ public class CFPMiner extends BasicCFPMiner
 		return endpoints;
 	}
 
-	public void mine(List<String> smiles) throws Exception
+	@Override
+	protected void initMining(List<String> smiles) throws Exception
 	{
+		checkModifiable();
+		undoFilter();
 		trainingUniqsToEndpoint = new HashMap<>();
-		int idx = 0;
+		trainingUniqsToEndpoint.putAll(uniqsToEndpoint(smiles, 0));
+
+		super.initMining(smiles);
+	}
+
+	/**
+	 * unique smiles to endpoint for the compounds starting at offset, checks for duplicates
+	 */
+	private HashMap<String, String> uniqsToEndpoint(List<String> smiles, int offset)
+			throws CDKException
+	{
+		HashMap<String, String> uniqs = new HashMap<>();
+		int idx = offset;
 		for (String smi : smiles)
 		{
 			String uniq = CDKConverter.toAbsoluteSmiles(smi);
-			if (trainingUniqsToEndpoint.containsKey(uniq))
+			if (uniqs.containsKey(uniq) || trainingUniqsToEndpoint.containsKey(uniq))
 				throw new IllegalStateException("no duplicates allowed! " + idx + " " + smi);
-			trainingUniqsToEndpoint.put(uniq, endpoints.get(idx));
+			uniqs.put(uniq, endpoints.get(idx));
 			idx++;
 		}
+		return uniqs;
+	}
+
+	/**
+	 * appends compounds and their endpoint values, see {@link #append(List)}
+	 */
+	public void append(List<String> smiles, List<String> newEndpoints) throws Exception
+	{
+		if (smiles.size() != newEndpoints.size())
+			throw new IllegalArgumentException(smiles.size() + " != " + newEndpoints.size());
+		List<String> oldEndpoints = endpoints;
+		endpoints = new ArrayList<>(endpoints);
+		endpoints.addAll(newEndpoints);
+		try
+		{
+			append(smiles);
+		}
+		catch (Exception e)
+		{
+			endpoints = oldEndpoints;
+			throw e;
+		}
+	}
+
+	/**
+	 * the endpoint list has to contain the values for the appended compounds already
+	 * 
+	 * a previously applied filter is undone (apply the filter again after appending)
+	 */
+	@Override
+	public void append(List<String> smiles) throws Exception
+	{
+		checkModifiable();
+		if (endpoints.size() != numCompounds + smiles.size())
+			throw new IllegalArgumentException("endpoints missing for appended compounds: "
+					+ endpoints.size() + " != " + (numCompounds + smiles.size()));
+		HashMap<String, String> uniqs = uniqsToEndpoint(smiles, numCompounds);
+
+		super.append(smiles);
+
+		trainingUniqsToEndpoint.putAll(uniqs);
+		classValues = null;
+		activeIdx = null;
+	}
+
+	/**
+	 * the compounds are inserted into the unfiltered fragments, the filter is kept if
+	 * fingerprinting fails
+	 */
+	@Override
+	protected void appendFingerprinted()
+	{
+		undoFilter();
+	}
+
+	/**
+	 * restores the unfiltered fragments and ends the filter session
+	 */
+	private void undoFilter()
+	{
+		if (filterSession == null)
+			return;
+		fragmentToCompound = filterSession.getUnfiltered();
+		filterSession = null;
+		fragmentsChanged();
+	}
+
+	/**
+	 * invalidates the indices and caches that are derived from the fragments (the fragment list and
+	 * indices, the compound to fragment index, the hierarchy and the test compound caches)
+	 */
+	private void fragmentsChanged()
+	{
+		compoundToFragment = null;
+		fragmentList = null;
+		fragmentToIdx = null;
+		hierarchy = null;
+		includedFragments = null;
+		clearTestCompoundCache();
+	}
+
+	/**
+	 * the session of the applied filter, a temporary session if the fragments are not filtered
+	 * (a filter method is called directly)
+	 */
+	private FilterSession getFilterSession()
+	{
+		if (filterSession != null && fragmentToCompound.isViewOf(filterSession.getUnfiltered()))
+			return filterSession;
+		return new FilterSession(fragmentToCompound, endpoints, numCompounds);
+	}
+
+	/**
+	 * streaming mining (see {@link #mine(Iterator)}, {@link #mineFile(String)}), the endpoints
+	 * passed to the constructor are the values of the records of the stream (in input order,
+	 * including records that turn out to be invalid), the endpoints of skipped records are removed
+	 * 
+	 * duplicates are detected batch by batch before a batch is inserted, if mining stops (e.g. due
+	 * to a duplicate) the miner contains the compounds and endpoints of the previous batches
+	 */
+	@Override
+	protected int mineStream(Iterator<?> records, boolean molecules) throws Exception
+	{
+		checkModifiable();
+		undoFilter();
+		recordEndpoints = endpoints;
+		endpoints = new ArrayList<>();
+		trainingUniqsToEndpoint = new HashMap<>();
+		batchUniqs = new HashMap<>();
+		batchEndpoints = new ArrayList<>();
+		numStreamRecords = 0;
+		classValues = null;
+		activeIdx = null;
+		try
+		{
+			int numSkipped = super.mineStream(records, molecules);
+			if (numStreamRecords != recordEndpoints.size())
+				throw new IllegalArgumentException("number of endpoints (" + recordEndpoints.size()
+						+ ") does not match number of records (" + numStreamRecords + ")");
+			return numSkipped;
+		}
+		finally
+		{
+			recordEndpoints = null;
+			batchUniqs = null;
+			batchEndpoints = null;
+		}
+	}
+
+	@Override
+	protected void streamedRecord(int record, IAtomContainer mol) throws CDKException
+	{
+		if (record >= recordEndpoints.size())
+			throw new IllegalArgumentException("no endpoint for record " + record
+					+ ", num endpoints: " + recordEndpoints.size());
+		numStreamRecords = record + 1;
+		if (mol == null)
+			return;
+		// computed from the uncached molecule, the static smiles caches are not used
+		String uniq = CDKConverter.toAbsoluteSmiles(mol);
+		if (batchUniqs.containsKey(uniq) || trainingUniqsToEndpoint.containsKey(uniq))
+			throw new IllegalStateException("no duplicates allowed! " + record + " " + uniq);
+		batchUniqs.put(uniq, recordEndpoints.get(record));
+		batchEndpoints.add(recordEndpoints.get(record));
+	}
+
+	@Override
+	protected void streamedBatch()
+	{
+		trainingUniqsToEndpoint.putAll(batchUniqs);
+		endpoints.addAll(batchEndpoints);
+		batchUniqs.clear();
+		batchEndpoints.clear();
+	}
 
-		super.mine(smiles);
+	@Override
+	public CFPMiner clone()
+	{
+		CFPMiner f;
+		try
+		{
+			f = new CFPMiner(endpoints == null ? null : new ArrayList<>(endpoints));
+		}
+		catch (CDKException e)
+		{
+			throw new RuntimeException(e);
+		}
+		copyTo(f);
+		return f;
+	}
+
+	/**
+	 * the copy of a filtered miner keeps the unfiltered fragments, i.e. the filter can be
+	 * re-applied to the copy
+	 */
+	@Override
+	protected void copyTo(BasicCFPMiner f)
+	{
+		super.copyTo(f);
+		CFPMiner m = (CFPMiner) f;
+		m.verbose = verbose;
+		if (trainingUniqsToEndpoint != null)
+			m.trainingUniqsToEndpoint = new HashMap<>(trainingUniqsToEndpoint);
+		if (filterSession != null && fragmentToCompound.isViewOf(filterSession.getUnfiltered()))
+		{
+			m.filterSession = new FilterSession(filterSession.getUnfiltered().clone(), m.endpoints,
+					numCompounds);
+			m.fragmentToCompound = m.filterSession.view();
+			for (int s = 0; s < fragmentToCompound.getNumSlots(); s++)
+				if (fragmentToCompound.isRemoved(s) && !m.fragmentToCompound.isRemoved(s))
+					m.fragmentToCompound.removeSlot(s);
+		}
 	}
 
 	public String getTrainingActivity(String smiles) throws CDKException
@@ -79,42 +300,57 @@ public class CFPMiner extends BasicCFPMiner
 
 	private void applyMinFreq(Set<Integer> compoundSubset, int minFreq)
 	{
+		// frequency of each fragment in the subset (computed once, via bitmap and popcount)
+		long subset[] = CompoundSet.bitmap(compoundSubset, numCompounds);
+		int freq[] = new int[fragmentToCompound.getNumSlots()];
+		for (int s = fragmentToCompound.nextSlot(0); s != -1; s = fragmentToCompound.nextSlot(s + 1))
+			freq[s] = fragmentToCompound.getCompounds(s).intersectSize(subset);
+
 		// remove with min-freq 0, would not have been mined on subset
-		List<CFPFragment> fragmentToDelete = new ArrayList<CFPFragment>();
-		for (CFPFragment f : fragmentToCompound.keySet())
-			if (SetUtil.intersectSize(fragmentToCompound.get(f), compoundSubset) == 0)
-				fragmentToDelete.add(f);
-		removeFragments(fragmentToDelete);
+		for (int s = fragmentToCompound.nextSlot(0); s != -1; s = fragmentToCompound.nextSlot(s + 1))
+			if (freq[s] == 0)
+				fragmentToCompound.removeSlot(s);
+		fragmentsChanged();
 
 		// remove only if larger than hashfoldize
 		if (fragmentToCompound.size() <= hashfoldsize)
 			return;
 
-		// collect tuples of hash code and min-freq
-		List<int[]> hf = new ArrayList<int[]>();
-		for (CFPFragment f : fragmentToCompound.keySet())
-			hf.add(new int[] { f.getId(),
-					SetUtil.intersectSize(fragmentToCompound.get(f), compoundSubset) });
-
-		// sort according to min freq, in decreasing order
-		Collections.sort(hf, new Comparator<int[]>()
+		// the hashfoldsize most frequent fragments are kept (ties in fragment order), min-freq is
+		// applied to the remaining ones
+		// frequencies are small, select with a histogram of the infrequent fragments instead of sorting
+		int numFrequent = 0;
+		int hist[] = new int[Math.max(1, absMinFreq)];
+		for (int s = fragmentToCompound.nextSlot(0); s != -1; s = fragmentToCompound.nextSlot(s + 1))
+			if (freq[s] >= absMinFreq)
+				numFrequent++;
+			else
+				hist[freq[s]]++;
+		int keep = hashfoldsize - numFrequent;
+		int threshold = absMinFreq;
+		int keepAtThreshold = 0;
+		for (int f = absMinFreq - 1; f > 0 && keep > 0; f--)
 		{
-			@Override
-			public int compare(int[] o1, int[] o2)
+			if (hist[f] > keep)
 			{
-				// swap params to sort in descending order
-				return Integer.valueOf(o2[1]).compareTo(Integer.valueOf(o1[1]));
+				threshold = f;
+				keepAtThreshold = keep;
+				break;
 			}
-		});
-
-		Set<CFPFragment> toRemove = new HashSet<>();
-		// apply min-freq while size > hashfoldsize
-		for (int i = hashfoldsize; i < hf.size(); i++)
+			keep -= hist[f];
+			threshold = f;
+			keepAtThreshold = hist[f];
+		}
+		for (int s = fragmentToCompound.nextSlot(0); s != -1; s = fragmentToCompound.nextSlot(s + 1))
 		{
-			if (hf.get(i)[1] < absMinFreq)
-				toRemove.add(new CFPFragment(hf.get(i)[0]));
+			if (freq[s] >= absMinFreq || freq[s] > threshold)
+				continue;
+			if (freq[s] == threshold && keepAtThreshold > 0)
+				keepAtThreshold--;
+			else
+				fragmentToCompound.removeSlot(s);
 		}
-		removeFragments(toRemove);
+		fragmentsChanged();
 
 		if (verbose)
 			System.out.println("CFPMiner: applied min freq filter: " + fragmentToCompound.size());
@@ -133,63 +369,31 @@ public class CFPMiner extends BasicCFPMiner
 
 	public void applyClosedSetFilter(Set<Integer> compoundSubset)
 	{
+		checkModifiable();
 		if (fragmentToCompound.size() <= hashfoldsize)
 			return;
 		int maxNumRemove = fragmentToCompound.size() - hashfoldsize;
 
-		LinkedHashMap<CFPFragment, Set<Integer>> fragmentToCompoundSubset = new LinkedHashMap<>();
-		LinkedHashMap<Integer, List<CFPFragment>> fragmentWithSimilarSubsets = new LinkedHashMap<>();
-		for (CFPFragment f : fragmentToCompound.keySet())
-		{
-			@SuppressWarnings("unchecked")
-			Set<Integer> hCompounds = (Set<Integer>) fragmentToCompound.get(f).clone();
-			hCompounds.retainAll(compoundSubset);
-			fragmentToCompoundSubset.put(f, hCompounds);
-
-			int eq = hCompounds.hashCode();
-			if (!fragmentWithSimilarSubsets.containsKey(eq))
-				fragmentWithSimilarSubsets.put(eq, new ArrayList<CFPFragment>());
-			fragmentWithSimilarSubsets.get(eq).add(f);
-		}
-
-		if (fragmentList == null)
-			getFragmentViaIdx(0);
-		Set<CFPFragment> fragmentsToRemove = new HashSet<>();
-
-		for (List<CFPFragment> fragmentSet : fragmentWithSimilarSubsets.values())
+		// fragments with equal compound sets (precomputed by the filter session) share the
+		// compound subset, it is computed once per group
+		FilterSession session = getFilterSession();
+		int groups[] = session.getGroups();
+		long subset[] = session.bitmap(compoundSubset);
+		CompoundSet fragmentToCompoundSubset[] = new CompoundSet[fragmentToCompound.getNumSlots()];
+		for (int s = fragmentToCompound.nextSlot(0); s != -1; s = fragmentToCompound.nextSlot(s + 1))
 		{
-			for (int i = 0; i < fragmentSet.size() - 1; i++)
-			{
-				CFPFragment f1 = fragmentSet.get(i);
-				if (fragmentsToRemove.contains(f1))
-					continue;
-
-				for (int j = i + 1; j < fragmentSet.size(); j++)
-				{
-					CFPFragment f2 = fragmentSet.get(j);
-					if (fragmentsToRemove.contains(f2))
-						continue;
-
-					if (fragmentToCompoundSubset.get(f1).equals(fragmentToCompoundSubset.get(f2)))
-					{
-						CFPFragment obsolete = getNonClosed(f1, f2,
-								fragmentToCompoundSubset.get(f1));
-						if (obsolete != null)
-						{
-							fragmentsToRemove.add(obsolete);
-							if (fragmentsToRemove.size() >= maxNumRemove || obsolete == f1)
-								break;
-						}
-					}
-				}
-				if (fragmentsToRemove.size() >= maxNumRemove)
-					break;
-			}
-			if (fragmentsToRemove.size() >= maxNumRemove)
-				break;
+			int g = groups[s];
+			if (fragmentToCompoundSubset[g] == null)
+				fragmentToCompoundSubset[g] = fragmentToCompound.getCompounds(g).intersect(subset);
+			fragmentToCompoundSubset[s] = fragmentToCompoundSubset[g];
 		}
 
-		removeFragments(fragmentsToRemove);
+		// fragments with equal subsets are compared via their atoms (exact grouping, in parallel)
+		BitSet fragmentsToRemove = new ClosedSetFilter(this, fragmentToCompound, numThreads)
+				.getNonClosed(fragmentToCompoundSubset, groups, maxNumRemove);
+		for (int s = fragmentsToRemove.nextSetBit(0); s != -1; s = fragmentsToRemove.nextSetBit(s + 1))
+			fragmentToCompound.removeSlot(s);
+		fragmentsChanged();
 
 		if (verbose)
 			System.out.println(
@@ -206,15 +410,13 @@ public class CFPMiner extends BasicCFPMiner
 			boolean f2SupersetCandiate = true;
 			for (Integer c : compounds)
 			{
-				IAtomContainer mol = CDKConverter.parseSmiles(trainingDataSmiles.get(c));
-				Set<Integer> atoms1 = getAtomsMultiple(mol, f1);
-				Set<Integer> atoms2 = getAtomsMultiple(mol, f2);
-				//				System.out.println("mol " + c + " atoms h1: " + atoms1 + " atoms h2: " + atoms2);
+				long[] atoms1 = getAtomBits(c, f1);
+				long[] atoms2 = getAtomBits(c, f2);
 				if (f1SupersetCandiate)
-					if (!SetUtil.isSubSet(atoms1, atoms2))
+					if (!MoleculeFingerprint.isSubset(atoms2, atoms1))
 						f1SupersetCandiate = false;
 				if (f2SupersetCandiate)
-					if (!SetUtil.isSubSet(atoms2, atoms1))
+					if (!MoleculeFingerprint.isSubset(atoms1, atoms2))
 						f2SupersetCandiate = false;
 				if (!f1SupersetCandiate && !f2SupersetCandiate)
 					return null;
@@ -234,6 +436,7 @@ public class CFPMiner extends BasicCFPMiner
 
 	public void applyChiSquareFilter(Set<Integer> compoundSubset)
 	{
+		checkModifiable();
 		// chi square is apply to a counts array for each class
 		// e.g. it compares 45 x active 41 x inactive in the compoundSubset
 		// to feature-x with 31 x active, 5 x inactive for all compounds with feature-value(feature-x, compound-y)= active
@@ -241,64 +444,57 @@ public class CFPMiner extends BasicCFPMiner
 			throw new IllegalArgumentException(endpoints.size() + " != " + numCompounds);
 		if (fragmentToCompound.size() <= hashfoldsize)
 			return;
-		List<String> domain = new ArrayList<String>(new HashSet<String>(endpoints));
+		// one bitmap per class (restricted to the subset), precomputed by the filter session
+		FilterSession session = getFilterSession();
+		List<String> domain = session.getDomain();
 		if (domain.size() < 2)
 		{
 			System.err.println("CFPMiner: cannot apply chis square filter, endpoint-domain is <2 "
 					+ domain + ", remaining features: " + fragmentToCompound.size());
 			return;
 		}
-		List<String> subsetEndpoints = new ArrayList<String>();
-		for (Integer c : compoundSubset)
-			subsetEndpoints.add(endpoints.get(c));
-		long[] all = nominalCounts(domain, subsetEndpoints);
+		final long classBits[][] = session.getClassBits(session.bitmap(compoundSubset));
+		final long all[] = new long[domain.size()];
+		for (int k = 0; k < all.length; k++)
+			for (long w : classBits[k])
+				all[k] += Long.bitCount(w);
 		//		System.out.println(domain);
 		//		System.out.println(ArrayUtil.toString(all));
 
-		// create tuples of hash code and p-value
-		List<double[]> hp = new ArrayList<double[]>();
-		for (CFPFragment f : fragmentToCompound.keySet())
-		{
-			List<String> values = new ArrayList<String>();
-			for (Integer c : fragmentToCompound.get(f))
-				if (compoundSubset.contains(c))
-					values.add(endpoints.get(c));
-			//			System.out.println(values);
-			//			System.out.println(ArrayUtil.toString(nominalCounts(domain, values)));
-
-			double p = Double.MAX_VALUE;
-			if (values.size() > 0)
-			{
-				long sel[] = nominalCounts(domain, values);
-				//System.err.println(ArrayUtil.toString(all));
-				//				System.err.println(values.size());
-				//System.err.println(ArrayUtil.toString(sel));
-				p = TestUtils.chiSquareTestDataSetsComparison(sel, all);
-				//				System.err.println("p value of hash code " + h + " is " + p);
-				//				if (p > pValueThreshold)
-				//					hashCodeToDelete.add(h);
-			}
-			hp.add(new double[] { f.getId(), p });
-		}
-
-		//sort tuples according to p-values
-		Collections.sort(hp, new Comparator<double[]>()
+		// p-value for each fragment (computed in parallel, class counts via popcount)
+		final int slots[] = new int[fragmentToCompound.size()];
+		int n = 0;
+		for (int s = fragmentToCompound.nextSlot(0); s != -1; s = fragmentToCompound.nextSlot(s + 1))
+			slots[n++] = s;
+		final double p[] = new double[slots.length];
+		ParallelBlocks.run(numThreads, slots.length, new ParallelBlocks.Block<Void>()
 		{
 			@Override
-			public int compare(double[] o1, double[] o2)
+			public Void compute(int from, int to)
 			{
-				return Double.valueOf(o1[1]).compareTo(Double.valueOf(o2[1]));
+				long sel[] = new long[all.length];
+				for (int i = from; i < to; i++)
+				{
+					CompoundSet compounds = fragmentToCompound.getCompounds(slots[i]);
+					long sum = 0;
+					for (int k = 0; k < sel.length; k++)
+					{
+						sel[k] = compounds.intersectSize(classBits[k]);
+						sum += sel[k];
+					}
+					p[i] = sum > 0 ? TestUtils.chiSquareTestDataSetsComparison(sel, all)
+							: Double.MAX_VALUE;
+				}
+				return null;
 			}
 		});
 
-		//sort compounds higher than hash
-		Set<CFPFragment> toRemove = new HashSet<>();
-		for (int i = hashfoldsize; i < hp.size(); i++)
-		{
-			//			System.err.println("remove fragment with p-value " + hp.get(i)[1]);
-			toRemove.add(new CFPFragment((int) hp.get(i)[0]));
-		}
-		removeFragments(toRemove);
+		// keep the hashfoldsize fragments with the lowest p-values (ties in fragment order)
+		boolean keep[] = selectSmallest(p, hashfoldsize);
+		for (int i = 0; i < slots.length; i++)
+			if (!keep[i])
+				fragmentToCompound.removeSlot(slots[i]);
+		fragmentsChanged();
 		if (fragmentToCompound.size() != hashfoldsize)
 			throw new IllegalStateException();
 
@@ -306,12 +502,63 @@ public class CFPMiner extends BasicCFPMiner
 			System.out.println("CFPMiner: applied chi square filter: " + fragmentToCompound.size());
 	}
 
-	private void removeFragments(Collection<CFPFragment> fragmentToDelete)
+	/**
+	 * the k smallest values (ties are broken by position, like a stable sort), selected with a
+	 * bounded max-heap
+	 */
+	static boolean[] selectSmallest(double[] values, int k)
 	{
-		for (CFPFragment f : fragmentToDelete)
-			fragmentToCompound.remove(f);
-		compoundToFragment = null;
-		fragmentList = null;
+		boolean selected[] = new boolean[values.length];
+		if (k >= values.length)
+		{
+			Arrays.fill(selected, true);
+			return selected;
+		}
+		if (k <= 0)
+			return selected;
+		int heap[] = new int[k];
+		int size = 0;
+		for (int i = 0; i < values.length; i++)
+		{
+			if (size < k)
+			{
+				// sift up
+				int pos = size++;
+				while (pos > 0 && greater(values, i, heap[(pos - 1) / 2]))
+				{
+					heap[pos] = heap[(pos - 1) / 2];
+					pos = (pos - 1) / 2;
+				}
+				heap[pos] = i;
+			}
+			else if (greater(values, heap[0], i))
+			{
+				// replace the largest, sift down
+				int pos = 0;
+				while (true)
+				{
+					int child = 2 * pos + 1;
+					if (child >= size)
+						break;
+					if (child + 1 < size && greater(values, heap[child + 1], heap[child]))
+						child++;
+					if (!greater(values, heap[child], i))
+						break;
+					heap[pos] = heap[child];
+					pos = child;
+				}
+				heap[pos] = i;
+			}
+		}
+		for (int i = 0; i < size; i++)
+			selected[heap[i]] = true;
+		return selected;
+	}
+
+	private static boolean greater(double[] values, int i, int j)
+	{
+		int cmp = Double.compare(values[i], values[j]);
+		return cmp > 0 || (cmp == 0 && i > j);
 	}
 
 	protected void minePairs(Set<Integer> compoundSubset)
@@ -326,38 +573,47 @@ public class CFPMiner extends BasicCFPMiner
 		applyFilter(allCompounds);
 	}
 
-	@SuppressWarnings("unchecked")
 	public void applyFilter(Set<Integer> filterSubset)
 	{
 		if (featureSelection != FeatureSelection.filt)
 			throw new IllegalArgumentException();
-		if (fragmentToCompound.size() <= hashfoldsize)
+		checkModifiable();
+		// the size check refers to the unfiltered fragments (the filter may be applied repeatedly)
+		FragmentIndex unfiltered = filterSession != null ? filterSession.getUnfiltered()
+				: fragmentToCompound;
+		if (unfiltered.size() <= hashfoldsize)
 			throw new IllegalArgumentException("cannot apply filter with hashfoldsize: "
-					+ hashfoldsize + ", num fragments is only: " + fragmentToCompound.size()
+					+ hashfoldsize + ", num fragments is only: " + unfiltered.size()
 					+ ", disable filtering or reduce hashfoldsize!");
 
-		// undo old filter
-		if (fragmentToCompound_unfiltered != null)
-		{
-			fragmentToCompound = (LinkedHashMap<CFPFragment, LinkedHashSet<Integer>>) fragmentToCompound_unfiltered
-					.clone();
-			compoundToFragment = null;
-			fragmentList = null;
-		}
-		else
-			fragmentToCompound_unfiltered = (LinkedHashMap<CFPFragment, LinkedHashSet<Integer>>) fragmentToCompound
-					.clone();
+		// undo old filter, the new filter works on a view of the unfiltered fragments
+		if (filterSession == null)
+			filterSession = new FilterSession(unfiltered, endpoints, numCompounds);
+		fragmentToCompound = filterSession.view();
+		fragmentsChanged();
 
 		if (verbose)
 			System.out.println("apply filtering: " + fragmentToCompound.size());
 
 		// apply new filter
+		long start = stageStart();
+		int numFragments = fragmentToCompound.size();
 		applyMinFreq(filterSubset, absMinFreq);
+		stageFinished(CFPMinerListener.Stage.minFreq, start, numFragments);
 
+		start = stageStart();
+		numFragments = fragmentToCompound.size();
 		minePairs(filterSubset);
+		stageFinished(CFPMinerListener.Stage.pairs, start, numFragments);
+
+		start = stageStart();
 		applyClosedSetFilter(filterSubset);
+		stageFinished(CFPMinerListener.Stage.closedSet, start, numFragments);
 
+		start = stageStart();
+		numFragments = fragmentToCompound.size();
 		applyChiSquareFilter(filterSubset);
+		stageFinished(CFPMinerListener.Stage.chiSquare, start, numFragments);
 
 		//		System.out.println("filtered to: " + this);
 	}
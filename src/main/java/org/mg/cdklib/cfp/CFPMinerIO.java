@@ -0,0 +1,673 @@
+package org.mg.cdklib.cfp;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * compact, versioned binary format for mined models (alternative to java serialization)
+ *
+ * layout (big endian ints, sections are 4-byte aligned):
+ * <pre>
+ * header     magic, version, kind,
+ *            names (string table: type, featureSelection, testCacheKey, empty if not set),
+ *            hashfoldsize, absMinFreq, numThreads, storeAtoms, atomsCacheSize,
+ *            trackCollisions, testCacheSize, includedCacheSize, numCompounds,
+ *            numUnfoldedConflicts, numFragments, postingsEncoding
+ * ids        int[numFragments]      fragment ids in index order
+ * sortedIds  int[numFragments]      fragment ids in ascending order
+ * sortedPos  int[numFragments]      position (in ids) of each sorted id
+ * sizes      int[numFragments]      number of compounds per fragment
+ * offsets    int[numFragments + 1]  byte offsets of the postings (relative to postings start)
+ * postings   compound lists, delta-varint encoded or plain int32 (mappable)
+ * smiles     string table: count, int[count + 1] byte offsets, utf-8 bytes
+ * collisions numHashCodes, int[numHashCodes] distinct hash codes of a folded miner
+ * (CFPMiner) verbose, endpoints table, uniq keys table, uniq values table
+ * </pre>
+ * 
+ * version 1 had no trackCollisions field and stored the collisions per bit (bit, numHashCodes,
+ * hashCodes), versions 1 and 2 stored type and featureSelection as ordinal ints (instead of the
+ * names table) and had no testCacheSize, testCacheKey and includedCacheSize
+ *
+ * removed (filtered) fragments are not written, loading maps the file read-only and keeps the
+ * smiles in the mapped buffer (decoded on access)
+ */
+public class CFPMinerIO
+{
+	static final int MAGIC = 0x43465042; // "CFPB"
+	static final int VERSION = 3;
+
+	static final int KIND_BASIC = 0;
+	static final int KIND_MINER = 1;
+	static final int KIND_PAIR_MINER = 2;
+
+	/**
+	 * postings as delta encoded variable length ints (smallest files)
+	 */
+	public static final int POSTINGS_VARINT = 0;
+	/**
+	 * postings as plain sorted int32 arrays (can be searched in the mapped file without decoding)
+	 */
+	public static final int POSTINGS_INT32 = 1;
+
+	public static void write(BasicCFPMiner miner, String path) throws IOException
+	{
+		write(miner, path, POSTINGS_VARINT);
+	}
+
+	public static void write(BasicCFPMiner miner, String path, int postingsEncoding)
+			throws IOException
+	{
+		if (postingsEncoding != POSTINGS_VARINT && postingsEncoding != POSTINGS_INT32)
+			throw new IllegalArgumentException("unknown postings encoding " + postingsEncoding);
+		int kind = kind(miner);
+		FragmentIndex index = miner.fragmentToCompound;
+
+		int n = index.size();
+		int ids[] = new int[n];
+		int sizes[] = new int[n];
+		int offsets[] = new int[n + 1];
+		ByteSink postings = new ByteSink();
+		int i = 0;
+		for (int s = index.nextSlot(0); s != -1; s = index.nextSlot(s + 1))
+		{
+			ids[i] = index.getId(s);
+			int compounds[] = index.getCompounds(s).toIntArray();
+			sizes[i] = compounds.length;
+			if (postingsEncoding == POSTINGS_INT32)
+				for (int c : compounds)
+					postings.writeInt(c);
+			else
+			{
+				int prev = 0;
+				for (int c : compounds)
+				{
+					postings.writeVarInt(c - prev);
+					prev = c;
+				}
+			}
+			offsets[++i] = postings.size();
+		}
+		postings.align();
+
+		// sort ids, keep the position to look up postings via binary search
+		long sorted[] = new long[n];
+		for (i = 0; i < n; i++)
+			sorted[i] = ((long) ids[i] << 32) | i;
+		Arrays.sort(sorted);
+		int sortedIds[] = new int[n];
+		int sortedPos[] = new int[n];
+		for (i = 0; i < n; i++)
+		{
+			sortedIds[i] = (int) (sorted[i] >> 32);
+			sortedPos[i] = (int) sorted[i];
+		}
+
+		File tmp = new File(path + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16)))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(kind);
+			// enums by name, i.e. independent of the order of the constants
+			writeStrings(out, Arrays.asList(name(miner.type), name(miner.featureSelection),
+					name(miner.testCacheKey)));
+			out.writeInt(miner.hashfoldsize);
+			out.writeInt(miner.absMinFreq);
+			out.writeInt(miner.numThreads);
+			out.writeInt(miner.storeAtoms ? 1 : 0);
+			out.writeInt(miner.atomsCacheSize);
+			out.writeInt(miner.trackCollisions ? 1 : 0);
+			out.writeInt(miner.testCacheSize);
+			out.writeInt(miner.includedCacheSize);
+			out.writeInt(miner.numCompounds);
+			out.writeInt(miner.numUnfoldedConflicts);
+			out.writeInt(n);
+			out.writeInt(postingsEncoding);
+			writeInts(out, ids);
+			writeInts(out, sortedIds);
+			writeInts(out, sortedPos);
+			writeInts(out, sizes);
+			writeInts(out, offsets);
+			postings.writeTo(out);
+			writeStrings(out, miner.trainingDataSmiles);
+			writeCollisions(out, miner.collisions);
+			if (kind != KIND_BASIC)
+			{
+				CFPMiner m = (CFPMiner) miner;
+				out.writeInt(m.verbose ? 1 : 0);
+				writeStrings(out, m.endpoints);
+				List<String> keys = new ArrayList<>();
+				List<String> values = new ArrayList<>();
+				if (m.trainingUniqsToEndpoint != null)
+					for (Map.Entry<String, String> e : m.trainingUniqsToEndpoint.entrySet())
+					{
+						keys.add(e.getKey());
+						values.add(e.getValue());
+					}
+				writeStrings(out, keys);
+				writeStrings(out, values);
+			}
+		}
+		if (tmp.length() > Integer.MAX_VALUE)
+		{
+			tmp.delete();
+			throw new IOException("model too large for binary format (> 2GB)");
+		}
+		File f = new File(path);
+		if (f.exists() && !f.delete())
+			throw new IOException("cannot overwrite " + path);
+		if (!tmp.renameTo(f))
+			throw new IOException("cannot rename " + tmp + " to " + path);
+	}
+
+	private static String name(Enum<?> e)
+	{
+		return e == null ? "" : e.name();
+	}
+
+	private static <E extends Enum<E>> E valueOf(Class<E> enumType, String name) throws IOException
+	{
+		if (name.isEmpty())
+			return null;
+		try
+		{
+			return Enum.valueOf(enumType, name);
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new IOException("unknown " + enumType.getSimpleName() + " " + name);
+		}
+	}
+
+	private static int kind(BasicCFPMiner miner)
+	{
+		if (miner.getClass() == BasicCFPMiner.class)
+			return KIND_BASIC;
+		else if (miner.getClass() == CFPMiner.class)
+			return KIND_MINER;
+		else if (miner.getClass() == CFPPairMiner.class)
+			return KIND_PAIR_MINER;
+		else
+			throw new IllegalArgumentException(
+					"binary format not supported for " + miner.getClass().getName());
+	}
+
+	private static void writeCollisions(DataOutputStream out, CollisionCounter collisions)
+			throws IOException
+	{
+		if (collisions == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(collisions.getNumHashCodes());
+		writeInts(out, collisions.getHashCodes());
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException
+	{
+		for (int v : values)
+			out.writeInt(v);
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException
+	{
+		if (strings == null)
+		{
+			out.writeInt(-1);
+			return;
+		}
+		ByteSink bytes = new ByteSink();
+		int offsets[] = new int[strings.size() + 1];
+		for (int i = 0; i < strings.size(); i++)
+		{
+			bytes.write(strings.get(i).getBytes(StandardCharsets.UTF_8));
+			offsets[i + 1] = bytes.size();
+		}
+		bytes.align();
+		out.writeInt(strings.size());
+		writeInts(out, offsets);
+		bytes.writeTo(out);
+	}
+
+	/**
+	 * growable byte array
+	 */
+	private static class ByteSink
+	{
+		byte buf[] = new byte[1024];
+		int size;
+
+		void ensure(int n)
+		{
+			if (size + n > buf.length)
+				buf = Arrays.copyOf(buf, Math.max(size + n, buf.length * 2));
+		}
+
+		void write(byte[] b)
+		{
+			ensure(b.length);
+			System.arraycopy(b, 0, buf, size, b.length);
+			size += b.length;
+		}
+
+		void writeInt(int v)
+		{
+			ensure(4);
+			buf[size++] = (byte) (v >>> 24);
+			buf[size++] = (byte) (v >>> 16);
+			buf[size++] = (byte) (v >>> 8);
+			buf[size++] = (byte) v;
+		}
+
+		void writeVarInt(int v)
+		{
+			ensure(5);
+			while ((v & ~0x7F) != 0)
+			{
+				buf[size++] = (byte) ((v & 0x7F) | 0x80);
+				v >>>= 7;
+			}
+			buf[size++] = (byte) v;
+		}
+
+		void align()
+		{
+			ensure(3);
+			while (size % 4 != 0)
+				buf[size++] = 0;
+		}
+
+		int size()
+		{
+			return size;
+		}
+
+		void writeTo(DataOutputStream out) throws IOException
+		{
+			if (size > Integer.MAX_VALUE - 8)
+				throw new IOException("section too large");
+			out.writeInt(size);
+			out.write(buf, 0, size);
+		}
+	}
+
+	/**
+	 * the sections of a binary model file (positions are absolute offsets in the buffer)
+	 */
+	static class Layout
+	{
+		ByteBuffer buffer;
+		int version;
+		int kind;
+		CFPType type;
+		FeatureSelection featureSelection;
+		BasicCFPMiner.TestCacheKey testCacheKey;
+		int hashfoldsize;
+		int absMinFreq;
+		int numThreads;
+		boolean storeAtoms;
+		int atomsCacheSize;
+		int testCacheSize;
+		int includedCacheSize;
+		int numCompounds;
+		int numUnfoldedConflicts;
+		int numFragments;
+		int postingsEncoding;
+
+		int ids;
+		int sortedIds;
+		int sortedPos;
+		int sizes;
+		int offsets;
+		int postings;
+
+		List<String> smiles;
+		boolean trackCollisions;
+		CollisionCounter collisions;
+		boolean verbose;
+		List<String> endpoints;
+		List<String> uniqKeys;
+		List<String> uniqValues;
+
+		int getId(int i)
+		{
+			return buffer.getInt(ids + 4 * i);
+		}
+
+		int getSize(int i)
+		{
+			return buffer.getInt(sizes + 4 * i);
+		}
+
+		/**
+		 * position (in ids) of the fragment id, -1 if not contained
+		 */
+		int find(int id)
+		{
+			int lo = 0;
+			int hi = numFragments - 1;
+			while (lo <= hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				int v = buffer.getInt(sortedIds + 4 * mid);
+				if (v < id)
+					lo = mid + 1;
+				else if (v > id)
+					hi = mid - 1;
+				else
+					return buffer.getInt(sortedPos + 4 * mid);
+			}
+			return -1;
+		}
+
+		boolean contains(int i, int compound)
+		{
+			int n = getSize(i);
+			int pos = postings + buffer.getInt(offsets + 4 * i);
+			if (postingsEncoding == POSTINGS_INT32)
+			{
+				int lo = 0;
+				int hi = n - 1;
+				while (lo <= hi)
+				{
+					int mid = (lo + hi) >>> 1;
+					int v = buffer.getInt(pos + 4 * mid);
+					if (v < compound)
+						lo = mid + 1;
+					else if (v > compound)
+						hi = mid - 1;
+					else
+						return true;
+				}
+				return false;
+			}
+			else
+			{
+				int prev = 0;
+				for (int j = 0; j < n && prev <= compound; j++)
+				{
+					int v = 0;
+					int shift = 0;
+					byte b;
+					do
+					{
+						b = buffer.get(pos++);
+						v |= (b & 0x7F) << shift;
+						shift += 7;
+					}
+					while (b < 0);
+					prev += v;
+					if (prev == compound)
+						return true;
+				}
+				return false;
+			}
+		}
+
+		int[] getCompounds(int i)
+		{
+			int c[] = new int[getSize(i)];
+			int pos = postings + buffer.getInt(offsets + 4 * i);
+			if (postingsEncoding == POSTINGS_INT32)
+			{
+				for (int j = 0; j < c.length; j++)
+					c[j] = buffer.getInt(pos + 4 * j);
+			}
+			else
+			{
+				int prev = 0;
+				for (int j = 0; j < c.length; j++)
+				{
+					int v = 0;
+					int shift = 0;
+					byte b;
+					do
+					{
+						b = buffer.get(pos++);
+						v |= (b & 0x7F) << shift;
+						shift += 7;
+					}
+					while (b < 0);
+					prev += v;
+					c[j] = prev;
+				}
+			}
+			return c;
+		}
+	}
+
+	static Layout map(String path) throws IOException
+	{
+		ByteBuffer buffer;
+		try (RandomAccessFile f = new RandomAccessFile(path, "r");
+				FileChannel channel = f.getChannel())
+		{
+			if (channel.size() > Integer.MAX_VALUE)
+				throw new IOException("model too large for binary format (> 2GB)");
+			// the mapping stays valid after the channel is closed
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		Layout l = new Layout();
+		l.buffer = buffer;
+		if (buffer.getInt() != MAGIC)
+			throw new IOException("not a binary cfp model: " + path);
+		int version = buffer.getInt();
+		if (version < 1 || version > VERSION)
+			throw new IOException("unsupported binary cfp model version " + version);
+		l.version = version;
+		l.kind = buffer.getInt();
+		if (version >= 3)
+		{
+			List<String> names = readStrings(buffer);
+			l.type = valueOf(CFPType.class, names.get(0));
+			l.featureSelection = valueOf(FeatureSelection.class, names.get(1));
+			l.testCacheKey = valueOf(BasicCFPMiner.TestCacheKey.class, names.get(2));
+		}
+		else
+		{
+			// ordinals of the enums at the time of versions 1 and 2
+			int type = buffer.getInt();
+			l.type = type == -1 ? null : CFPType.values()[type];
+			int featureSelection = buffer.getInt();
+			l.featureSelection = featureSelection == -1 ? null
+					: FeatureSelection.values()[featureSelection];
+		}
+		l.hashfoldsize = buffer.getInt();
+		l.absMinFreq = buffer.getInt();
+		l.numThreads = buffer.getInt();
+		l.storeAtoms = buffer.getInt() == 1;
+		l.atomsCacheSize = buffer.getInt();
+		l.trackCollisions = version == 1 || buffer.getInt() == 1;
+		if (version >= 3)
+		{
+			l.testCacheSize = buffer.getInt();
+			l.includedCacheSize = buffer.getInt();
+		}
+		l.numCompounds = buffer.getInt();
+		l.numUnfoldedConflicts = buffer.getInt();
+		l.numFragments = buffer.getInt();
+		l.postingsEncoding = buffer.getInt();
+		int n = l.numFragments;
+		l.ids = buffer.position();
+		l.sortedIds = l.ids + 4 * n;
+		l.sortedPos = l.sortedIds + 4 * n;
+		l.sizes = l.sortedPos + 4 * n;
+		l.offsets = l.sizes + 4 * n;
+		buffer.position(l.offsets + 4 * (n + 1));
+		int postingsLength = buffer.getInt();
+		l.postings = buffer.position();
+		buffer.position(l.postings + postingsLength);
+		l.smiles = readStrings(buffer);
+		int numCollisions = buffer.getInt();
+		if (numCollisions != -1)
+		{
+			l.collisions = new CollisionCounter(l.hashfoldsize);
+			if (version == 1)
+			{
+				for (int i = 0; i < numCollisions; i++)
+				{
+					int bit = buffer.getInt();
+					for (int j = buffer.getInt(); j > 0; j--)
+						l.collisions.add(buffer.getInt(), bit);
+				}
+			}
+			else
+				for (int i = 0; i < numCollisions; i++)
+				{
+					int hashCode = buffer.getInt();
+					l.collisions.add(hashCode, BasicCFPMiner.fold(hashCode, l.hashfoldsize));
+				}
+		}
+		if (l.kind != KIND_BASIC)
+		{
+			l.verbose = buffer.getInt() == 1;
+			l.endpoints = readStrings(buffer);
+			l.uniqKeys = readStrings(buffer);
+			l.uniqValues = readStrings(buffer);
+		}
+		return l;
+	}
+
+	private static List<String> readStrings(ByteBuffer buffer)
+	{
+		int count = buffer.getInt();
+		if (count == -1)
+			return null;
+		int offsets = buffer.position();
+		buffer.position(offsets + 4 * (count + 1));
+		int length = buffer.getInt();
+		int bytes = buffer.position();
+		buffer.position(bytes + length);
+		return new MappedStrings(buffer, count, offsets, bytes);
+	}
+
+	/**
+	 * read-only list of strings that are decoded from the mapped file on access
+	 */
+	static class MappedStrings extends AbstractList<String> implements RandomAccess, Serializable
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final transient ByteBuffer buffer;
+		private final int count;
+		private final int offsets;
+		private final int bytes;
+
+		MappedStrings(ByteBuffer buffer, int count, int offsets, int bytes)
+		{
+			this.buffer = buffer;
+			this.count = count;
+			this.offsets = offsets;
+			this.bytes = bytes;
+		}
+
+		@Override
+		public String get(int index)
+		{
+			if (index < 0 || index >= count)
+				throw new IndexOutOfBoundsException("index: " + index + ", size: " + count);
+			int start = buffer.getInt(offsets + 4 * index);
+			int end = buffer.getInt(offsets + 4 * (index + 1));
+			byte b[] = new byte[end - start];
+			// duplicate, as positions of the shared buffer are not thread-safe
+			ByteBuffer dup = buffer.duplicate();
+			dup.position(bytes + start);
+			dup.get(b);
+			return new String(b, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public int size()
+		{
+			return count;
+		}
+
+		private Object writeReplace() throws ObjectStreamException
+		{
+			return new ArrayList<>(this);
+		}
+	}
+
+	/**
+	 * reads a model written with {@link #write(BasicCFPMiner, String)}, the fragment index is
+	 * decoded into memory, the smiles remain in the mapped file
+	 */
+	public static BasicCFPMiner read(String path) throws Exception
+	{
+		BasicCFPMiner miner = open(path);
+		miner.fragmentToCompound = miner.fragmentToCompound.clone();
+		return miner;
+	}
+
+	/**
+	 * opens a model written with {@link #write(BasicCFPMiner, String)} as read-only miner, the
+	 * fragment index is not loaded but accessed in the memory-mapped file (writing the model with
+	 * {@link #POSTINGS_INT32} allows to test compounds for fragments without decoding the postings)
+	 * 
+	 * mining, appending and filtering are not supported, clone() returns a modifiable copy
+	 */
+	public static BasicCFPMiner open(String path) throws Exception
+	{
+		Layout l = map(path);
+		BasicCFPMiner miner;
+		if (l.kind == KIND_BASIC)
+			miner = new BasicCFPMiner();
+		else
+		{
+			// endpoints are copied as they are modified when appending compounds
+			List<String> endpoints = l.endpoints == null ? null : new ArrayList<>(l.endpoints);
+			if (l.kind == KIND_MINER)
+				miner = new CFPMiner(endpoints);
+			else if (l.kind == KIND_PAIR_MINER)
+				miner = new CFPPairMiner(endpoints);
+			else
+				throw new IOException("unknown miner kind " + l.kind);
+			CFPMiner m = (CFPMiner) miner;
+			m.verbose = l.verbose;
+			if (l.uniqKeys != null)
+			{
+				m.trainingUniqsToEndpoint = new HashMap<>();
+				for (int i = 0; i < l.uniqKeys.size(); i++)
+					m.trainingUniqsToEndpoint.put(l.uniqKeys.get(i), l.uniqValues.get(i));
+			}
+		}
+		miner.type = l.type;
+		miner.featureSelection = l.featureSelection;
+		miner.hashfoldsize = l.hashfoldsize;
+		miner.absMinFreq = l.absMinFreq;
+		miner.numThreads = l.numThreads;
+		miner.storeAtoms = l.storeAtoms;
+		miner.atomsCacheSize = l.atomsCacheSize;
+		if (l.version >= 3)
+		{
+			miner.testCacheSize = l.testCacheSize;
+			miner.testCacheKey = l.testCacheKey;
+			miner.includedCacheSize = l.includedCacheSize;
+		}
+		miner.numCompounds = l.numCompounds;
+		miner.numUnfoldedConflicts = l.numUnfoldedConflicts;
+		miner.trainingDataSmiles = l.smiles;
+		miner.trackCollisions = l.trackCollisions;
+		miner.collisions = l.collisions;
+		miner.fragmentToCompound = new MappedFragmentIndex(l);
+		return miner;
+	}
+}
@@ -0,0 +1,60 @@
+package org.mg.cdklib.cfp;
+
+/**
+ * receives progress, timings and counters of a miner (see
+ * {@link BasicCFPMiner#setListener(CFPMinerListener)}), e.g. to forward them to a monitoring system
+ *
+ * methods may be called from worker threads, all methods do nothing by default, nothing is measured
+ * if no listener is set
+ */
+public interface CFPMinerListener
+{
+	public static enum Stage
+	{
+		/**
+		 * fingerprinting and indexing of compounds (mine, append, streaming batches)
+		 */
+		mining,
+		/**
+		 * filter stages of {@link CFPMiner#applyFilter(java.util.Set)}
+		 */
+		minFreq, pairs, closedSet, chiSquare,
+		/**
+		 * sub- and super-fragments (computed on first use)
+		 */
+		hierarchy
+	}
+
+	public static enum Counter
+	{
+		molecules, fragmentsCreated, testCacheHits, testCacheMisses, atomsCacheHits,
+		atomsCacheMisses
+	}
+
+	/**
+	 * progress within a stage (molecules for mining, fragments for pairs), total is the number of
+	 * items of this stage
+	 */
+	public default void progress(BasicCFPMiner miner, Stage stage, long done, long total)
+	{
+	}
+
+	/**
+	 * a stage has finished
+	 *
+	 * @param nanos
+	 *            wall-clock time of the stage
+	 * @param numProcessed
+	 *            number of processed molecules (mining) or fragments (filter stages)
+	 * @param numFragments
+	 *            number of fragments after the stage
+	 */
+	public default void stageFinished(BasicCFPMiner miner, Stage stage, long nanos,
+			long numProcessed, int numFragments)
+	{
+	}
+
+	public default void count(BasicCFPMiner miner, Counter counter, long delta)
+	{
+	}
+}
@@ -1,12 +1,16 @@
 package org.mg.cdklib.cfp;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.commons.math3.stat.inference.TestUtils;
 import org.mg.cdklib.CDKConverter;
@@ -18,7 +22,7 @@ import org.mg.javalib.util.HashUtil;
 import org.mg.javalib.util.ListUtil;
 import org.mg.javalib.util.StringUtil;
 import org.openscience.cdk.exception.CDKException;
-import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.fingerprint.CircularFingerprinter;
 import org.openscience.cdk.interfaces.IAtomContainer;
 
 public class CFPPairMiner extends CFPMiner
@@ -122,7 +126,22 @@ public class CFPPairMiner extends CFPMiner
 	}
 
 	@Override
-	@SuppressWarnings("unchecked")
+	public CFPPairMiner clone()
+	{
+		CFPPairMiner f;
+		try
+		{
+			f = new CFPPairMiner(endpoints == null ? null : new ArrayList<>(endpoints));
+		}
+		catch (CDKException e)
+		{
+			throw new RuntimeException(e);
+		}
+		copyTo(f);
+		return f;
+	}
+
+	@Override
 	protected void minePairs(Set<Integer> compoundSubset)
 	{
 		if (fragmentList == null)
@@ -135,47 +154,113 @@ public class CFPPairMiner extends CFPMiner
 			//			System.out.println(c);
 			subsetEndpoints.add(endpoints.get(c));
 		}
-		System.out.println("subset endpoints " + CountedSet.create(subsetEndpoints));
+		if (verbose)
+			System.out.println("subset endpoints " + CountedSet.create(subsetEndpoints));
 		all = nominalCounts(domain, subsetEndpoints);
 
 		pairs = new ArrayList<>();
 
-		int minFrequency = Math.max(1, (int) (compoundSubset.size() * 0.05));
-		System.out.println("min-freq for pairs: " + minFrequency);
-		for (int i = 0; i < fragmentList.length - 1; i++)
+		final int minFrequency = Math.max(1, (int) (compoundSubset.size() * 0.05));
+		if (verbose)
+			System.out.println("min-freq for pairs: " + minFrequency);
+
+		// compounds of the subset as bitmap for each fragment that is frequent in the subset (both
+		// fragments of a pair have to be)
+		final int n = fragmentList.length;
+		long subset[] = CompoundSet.bitmap(compoundSubset, numCompounds);
+		final long bits[][] = new long[n][];
+		int counts[] = new int[numCompounds];
+		for (int i = 0; i < n; i++)
 		{
-			if (i % 100 == 0)
-				System.out.println(i);
-
-			CFPFragment f1 = fragmentList[i];
-			if (fragmentToCompound.get(f1).size() < minFrequency)
-				continue;
-			Set<Integer> h1Compounds = (Set<Integer>) fragmentToCompound.get(f1).clone();
-			h1Compounds.retainAll(compoundSubset);
-			if (h1Compounds.size() < minFrequency)
+			CompoundSet compounds = fragmentToCompound.get(fragmentList[i]);
+			if (compounds.size() < minFrequency || compounds.intersectSize(subset) < minFrequency)
 				continue;
+			bits[i] = compounds.toBitmap(numCompounds);
+			for (int w = 0; w < subset.length; w++)
+				bits[i][w] &= subset[w];
+			for (int c : CompoundSet.ofBitmap(bits[i]))
+				counts[c]++;
+		}
+		// compound to the (frequent) fragments, in fragment order
+		final int compoundToFragments[][] = new int[numCompounds][];
+		for (int c = 0; c < numCompounds; c++)
+			compoundToFragments[c] = new int[counts[c]];
+		Arrays.fill(counts, 0);
+		for (int i = 0; i < n; i++)
+			if (bits[i] != null)
+				for (int c : CompoundSet.ofBitmap(bits[i]))
+					compoundToFragments[c][counts[c]++] = i;
+
+		// atoms and bonds of the compounds, computed on first use
+		final AtomicReferenceArray<CompoundGraph> graphs = new AtomicReferenceArray<>(numCompounds);
+		final AtomicInteger done = new AtomicInteger();
+
+		// candidate pairs are fragments that co-occur in a compound of the subset, blocks of
+		// fragments are processed in parallel, pairs are merged in fragment order
+		ParallelBlocks.runUnchecked(numThreads, n, new ParallelBlocks.Block<List<Pair>>()
+		{
+			@Override
+			public List<Pair> compute(int from, int to)
+			{
+				List<Pair> blockPairs = new ArrayList<>();
+				BitSet candidates = new BitSet(n);
+				for (int i = from; i < to; i++)
+				{
+					if (listener != null)
+					{
+						int d = done.incrementAndGet();
+						if (d % 100 == 0 || d == n)
+							listener.progress(CFPPairMiner.this, CFPMinerListener.Stage.pairs,
+									d, n);
+					}
+					if (bits[i] == null)
+						continue;
+					candidates.clear();
+					int rest[] = new int[bits[i].length + 1];
+					for (int w = bits[i].length - 1; w >= 0; w--)
+					{
+						rest[w] = rest[w + 1] + Long.bitCount(bits[i][w]);
+						long word = bits[i][w];
+						while (word != 0)
+						{
+							int fragments[] = compoundToFragments[(w << 6)
+									+ Long.numberOfTrailingZeros(word)];
+							for (int k = fragments.length - 1; k >= 0 && fragments[k] > i; k--)
+								candidates.set(fragments[k]);
+							word &= word - 1;
+						}
+					}
 
-			for (int j = i + 1; j < fragmentList.length; j++)
+					CFPFragment f1 = fragmentList[i];
+					for (int j = candidates.nextSetBit(0); j != -1; j = candidates.nextSetBit(j + 1))
+					{
+						if (!intersectsAtLeast(bits[i], rest, bits[j], minFrequency))
+							continue;
+						CFPFragment f2 = fragmentList[j];
+						long common[] = new long[bits[i].length];
+						for (int w = 0; w < common.length; w++)
+							common[w] = bits[i][w] & bits[j][w];
+						CompoundSet intersect = CompoundSet.ofBitmap(common);
+						Set<Integer> adj = getAdjacent(f1, f2, intersect, graphs);
+						if (adj == null) // overlap
+							continue;
+						if (adj.size() < minFrequency)
+							continue;
+						Pair pair = new Pair(f1, f2, intersect, adj);
+						if (pair.pDiff > 0.1)
+							blockPairs.add(pair);
+					}
+				}
+				return blockPairs;
+			}
+		}, new ParallelBlocks.Merger<List<Pair>>()
+		{
+			@Override
+			public void merge(List<Pair> blockPairs)
 			{
-				CFPFragment f2 = fragmentList[j];
-				if (fragmentToCompound.get(f2).size() < minFrequency)
-					continue;
-				HashSet<Integer> intersect = new HashSet<Integer>(h1Compounds);
-				intersect.retainAll(fragmentToCompound.get(f2));
-				if (intersect.size() < minFrequency)
-					continue;
-				Set<Integer> adj = getAdjacent(f1, f2, intersect);
-				if (adj == null) // overlap
-					continue;
-				if (adj.size() < minFrequency)
-					continue;
-				//				System.out.println(numAdj + "/" + intersect.size());
-				Pair pair = new Pair(f1, f2, intersect, adj);
-				//				pairAdjacent.put(new Pair(h1, h2), adj);
-				if (pair.pDiff > 0.1)
-					pairs.add(pair);
+				pairs.addAll(blockPairs);
 			}
-		}
+		});
 
 		Collections.sort(pairs, new Comparator<Pair>()
 		{
@@ -185,43 +270,76 @@ public class CFPPairMiner extends CFPMiner
 				return Double.valueOf(o2.pDiff).compareTo(o1.pDiff);
 			}
 		});
-		int idx = 0;
-		for (Pair pair : pairs)
+		if (verbose)
+			System.out.println("CFPPairMiner: mined pairs: " + pairs.size());
+	}
+
+	/**
+	 * true if the intersection of the bitmaps has at least min bits, stops as soon as the
+	 * remaining bits of a (rest[w] = bits in words >= w) cannot reach min
+	 */
+	private static boolean intersectsAtLeast(long[] a, int[] rest, long[] b, int min)
+	{
+		int count = 0;
+		for (int w = 0; w < a.length; w++)
+		{
+			if (count + rest[w] < min)
+				return false;
+			count += Long.bitCount(a[w] & b[w]);
+			if (count >= min)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * atoms of the fragments and bonds of a training compound (computed once per minePairs call)
+	 */
+	private static class CompoundGraph
+	{
+		final MoleculeFingerprint fingerprint;
+		final AtomAdjacency adjacency;
+
+		CompoundGraph(MoleculeFingerprint fingerprint, AtomAdjacency adjacency)
+		{
+			this.fingerprint = fingerprint;
+			this.adjacency = adjacency;
+		}
+	}
+
+	private CompoundGraph getCompoundGraph(AtomicReferenceArray<CompoundGraph> graphs, int compound)
+			throws CDKException
+	{
+		CompoundGraph g = graphs.get(compound);
+		if (g == null)
 		{
-			System.out.println((idx++) + " " + pair);
+			IAtomContainer mol = CDKConverter.parseSmiles(trainingDataSmiles.get(compound));
+			MoleculeFingerprint fp = compoundAtoms != null ? compoundAtoms.get(compound)
+					: new MoleculeFingerprint(new CircularFingerprinter(type.getClassType()), mol,
+							true);
+			g = new CompoundGraph(fp, new AtomAdjacency(mol));
+			graphs.set(compound, g);
 		}
+		return g;
 	}
 
+	/**
+	 * compounds where the fragments are adjacent, null if the fragments overlap in any compound
+	 */
 	private Set<Integer> getAdjacent(CFPFragment h1, CFPFragment h2,
-			HashSet<Integer> intersectCompounds)
+			Set<Integer> intersectCompounds, AtomicReferenceArray<CompoundGraph> graphs)
 	{
 		try
 		{
 			Set<Integer> adj = new HashSet<>();
 			for (Integer c : intersectCompounds)
 			{
-				IAtomContainer mol = CDKConverter.parseSmiles(trainingDataSmiles.get(c));
-				//			int[] atoms1 = getAtoms(mol, h1);
-				//			int[] atoms2 = getAtoms(mol, h2);
-				Set<Integer> atoms1 = getAtomsMultiple(mol, h1);
-				Set<Integer> atoms2 = getAtomsMultiple(mol, h2);
-
-				boolean adjacent = false;
-				for (int a1 : atoms1)
-				{
-					List<IAtom> connected = null;
-					if (!adjacent)
-						connected = mol.getConnectedAtomsList(mol.getAtom(a1));
-
-					for (int a2 : atoms2)
-					{
-						if (a1 == a2)
-							return null;
-						if (!adjacent && connected.contains(mol.getAtom(a2)))
-							adjacent = true;
-					}
-				}
-				if (adjacent)
+				CompoundGraph g = getCompoundGraph(graphs, c);
+				long atoms1[] = g.fingerprint.getAtomBits(h1.getId());
+				long atoms2[] = g.fingerprint.getAtomBits(h2.getId());
+				if (AtomAdjacency.overlap(atoms1, atoms2))
+					return null;
+				if (g.adjacency.isAdjacent(atoms1, atoms2))
 					adj.add(c);
 			}
 			return adj;
@@ -0,0 +1,236 @@
+package org.mg.cdklib.cfp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * finds the non-closed fragments: a fragment is not closed if another fragment occurs in exactly
+ * the same compounds and covers its atoms in each of these compounds
+ *
+ * fragments are grouped by their compound set (exact key: 128-bit hash, verified with equals),
+ * groups are processed in parallel, atoms are compared as bitsets of the fingerprints that are
+ * stored while mining (or computed once per compound if not stored)
+ */
+class ClosedSetFilter
+{
+	/**
+	 * compound set with a 128-bit hash as map key
+	 */
+	static class SubsetKey
+	{
+		final CompoundSet compounds;
+		final long h1;
+		final long h2;
+
+		SubsetKey(CompoundSet compounds)
+		{
+			this.compounds = compounds;
+			long a = compounds.size();
+			long b = ~a;
+			for (Integer c : compounds)
+			{
+				a = (a + c) * 0x9E3779B97F4A7C15L;
+				a ^= a >>> 29;
+				b = (b ^ c) * 0xC2B2AE3D27D4EB4FL;
+				b ^= b >>> 31;
+			}
+			h1 = a;
+			h2 = b;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int) (h1 ^ (h1 >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o == this)
+				return true;
+			if (!(o instanceof SubsetKey))
+				return false;
+			SubsetKey k = (SubsetKey) o;
+			return h1 == k.h1 && h2 == k.h2
+					&& (compounds == k.compounds || compounds.equals(k.compounds));
+		}
+	}
+
+	private final BasicCFPMiner miner;
+	private final FragmentIndex index;
+	private final int numThreads;
+
+	ClosedSetFilter(BasicCFPMiner miner, FragmentIndex index, int numThreads)
+	{
+		this.miner = miner;
+		this.index = index;
+		this.numThreads = numThreads;
+	}
+
+	/**
+	 * the slots of the non-closed fragments (at most maxNumRemove), groups are processed in order
+	 * of their first fragment, fragments within a group in fragment order
+	 *
+	 * @param subsets
+	 *            compound subset for each slot, slots of the same group share the instance
+	 * @param groups
+	 *            for each slot the first slot with the same compound set
+	 */
+	BitSet getNonClosed(CompoundSet[] subsets, int[] groups, final int maxNumRemove)
+	{
+		// group fragments by exact compound subset, the key is computed once per group
+		LinkedHashMap<SubsetKey, List<Integer>> bySubset = new LinkedHashMap<>();
+		SubsetKey keys[] = new SubsetKey[subsets.length];
+		for (int s = index.nextSlot(0); s != -1; s = index.nextSlot(s + 1))
+		{
+			int g = groups[s];
+			if (keys[g] == null)
+				keys[g] = new SubsetKey(subsets[s]);
+			List<Integer> slots = bySubset.get(keys[g]);
+			if (slots == null)
+			{
+				slots = new ArrayList<>(1);
+				bySubset.put(keys[g], slots);
+			}
+			slots.add(s);
+		}
+		final List<int[]> candidateSlots = new ArrayList<>();
+		final List<int[]> candidateCompounds = new ArrayList<>();
+		BitSet compounds = new BitSet();
+		for (SubsetKey key : bySubset.keySet())
+		{
+			List<Integer> slots = bySubset.get(key);
+			if (slots.size() < 2)
+				continue;
+			int s[] = new int[slots.size()];
+			for (int i = 0; i < s.length; i++)
+				s[i] = slots.get(i);
+			candidateSlots.add(s);
+			int c[] = key.compounds.toIntArray();
+			candidateCompounds.add(c);
+			for (int x : c)
+				compounds.set(x);
+		}
+		final BitSet nonClosed = new BitSet();
+		if (candidateSlots.isEmpty())
+			return nonClosed;
+
+		// fingerprints with atoms, each compound is parsed at most once
+		final MoleculeFingerprint fingerprints[] = new MoleculeFingerprint[miner.getNumCompounds()];
+		final int needed[] = compounds.stream().toArray();
+		ParallelBlocks.run(numThreads, needed.length, new ParallelBlocks.Block<Void>()
+		{
+			@Override
+			public Void compute(int from, int to) throws Exception
+			{
+				for (int i = from; i < to; i++)
+					fingerprints[needed[i]] = miner.getTrainingFingerprint(needed[i]);
+				return null;
+			}
+		});
+
+		// groups are independent, the removals are merged in group order until max is reached
+		final AtomicBoolean done = new AtomicBoolean();
+		ParallelBlocks.runUnchecked(numThreads, candidateSlots.size(),
+				new ParallelBlocks.Block<int[][]>()
+				{
+					@Override
+					public int[][] compute(int from, int to)
+					{
+						int res[][] = new int[to - from][];
+						for (int i = from; i < to; i++)
+						{
+							if (done.get())
+								break;
+							res[i - from] = getNonClosed(candidateSlots.get(i),
+									candidateCompounds.get(i), fingerprints);
+						}
+						return res;
+					}
+				}, new ParallelBlocks.Merger<int[][]>()
+				{
+					int n = 0;
+
+					@Override
+					public void merge(int[][] result)
+					{
+						for (int[] slots : result)
+						{
+							if (n >= maxNumRemove || slots == null)
+								break;
+							for (int s : slots)
+							{
+								nonClosed.set(s);
+								if (++n >= maxNumRemove)
+								{
+									done.set(true);
+									break;
+								}
+							}
+						}
+					}
+				});
+		return nonClosed;
+	}
+
+	/**
+	 * the non-closed fragments of a group (in order of removal)
+	 */
+	private int[] getNonClosed(int[] slots, int[] compounds, MoleculeFingerprint[] fingerprints)
+	{
+		// atoms of each fragment in each compound
+		long atoms[][][] = new long[slots.length][compounds.length][];
+		for (int i = 0; i < slots.length; i++)
+		{
+			int id = index.getId(slots[i]);
+			for (int c = 0; c < compounds.length; c++)
+				atoms[i][c] = fingerprints[compounds[c]].getAtomBits(id);
+		}
+		boolean removed[] = new boolean[slots.length];
+		int res[] = new int[slots.length];
+		int n = 0;
+		for (int i = 0; i < slots.length - 1; i++)
+		{
+			if (removed[i])
+				continue;
+			for (int j = i + 1; j < slots.length; j++)
+			{
+				if (removed[j])
+					continue;
+				int obsolete = getNonClosed(atoms[i], atoms[j], i, j);
+				if (obsolete != -1)
+				{
+					removed[obsolete] = true;
+					res[n++] = slots[obsolete];
+					if (obsolete == i)
+						break;
+				}
+			}
+		}
+		return Arrays.copyOf(res, n);
+	}
+
+	/**
+	 * i if fragment j covers the atoms of i in each compound, j if i covers j, -1 otherwise
+	 */
+	private static int getNonClosed(long[][] atoms1, long[][] atoms2, int i, int j)
+	{
+		boolean f1SupersetCandiate = true;
+		boolean f2SupersetCandiate = true;
+		for (int c = 0; c < atoms1.length; c++)
+		{
+			if (f1SupersetCandiate && !MoleculeFingerprint.isSubset(atoms2[c], atoms1[c]))
+				f1SupersetCandiate = false;
+			if (f2SupersetCandiate && !MoleculeFingerprint.isSubset(atoms1[c], atoms2[c]))
+				f2SupersetCandiate = false;
+			if (!f1SupersetCandiate && !f2SupersetCandiate)
+				return -1;
+		}
+		return f1SupersetCandiate ? j : i;
+	}
+}
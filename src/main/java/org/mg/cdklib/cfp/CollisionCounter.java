@@ -0,0 +1,125 @@
+package org.mg.cdklib.cfp;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * collision statistics of a folded fingerprint: the number of distinct hash codes folded into
+ * each bit (replaces HashMap<Integer, Set<Integer>>)
+ *
+ * the bit is a function of the hash code, so it is sufficient to keep the set of distinct hash
+ * codes (int open-addressing table) and a count per bit
+ */
+public class CollisionCounter implements Serializable
+{
+	private static final long serialVersionUID = 1L;
+
+	private final int counts[];
+
+	/**
+	 * open addressing with linear probing, 0 is the empty marker (hash code 0 is flagged separately)
+	 */
+	private int table[] = new int[64];
+	private int numHashCodes;
+	private boolean containsZero;
+
+	public CollisionCounter(int hashfoldsize)
+	{
+		counts = new int[hashfoldsize];
+	}
+
+	/**
+	 * independent copy of the counter
+	 */
+	CollisionCounter(CollisionCounter c)
+	{
+		counts = c.counts.clone();
+		table = c.table.clone();
+		numHashCodes = c.numHashCodes;
+		containsZero = c.containsZero;
+	}
+
+	public int getHashfoldsize()
+	{
+		return counts.length;
+	}
+
+	/**
+	 * adds the hash code that is folded into the bit
+	 */
+	public void add(int hashCode, int bit)
+	{
+		if (hashCode == 0)
+		{
+			if (containsZero)
+				return;
+			containsZero = true;
+		}
+		else
+		{
+			int mask = table.length - 1;
+			int h = mix(hashCode) & mask;
+			while (table[h] != 0)
+			{
+				if (table[h] == hashCode)
+					return;
+				h = (h + 1) & mask;
+			}
+			table[h] = hashCode;
+			if ((numHashCodes + 1) * 2 > table.length)
+				resize();
+		}
+		numHashCodes++;
+		counts[bit]++;
+	}
+
+	private static int mix(int hashCode)
+	{
+		int h = hashCode * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void resize()
+	{
+		int old[] = table;
+		table = new int[old.length * 2];
+		int mask = table.length - 1;
+		for (int v : old)
+			if (v != 0)
+			{
+				int h = mix(v) & mask;
+				while (table[h] != 0)
+					h = (h + 1) & mask;
+				table[h] = v;
+			}
+	}
+
+	/**
+	 * number of distinct hash codes folded into the bit
+	 */
+	public int getCount(int bit)
+	{
+		return counts[bit];
+	}
+
+	public int getNumHashCodes()
+	{
+		return numHashCodes;
+	}
+
+	/**
+	 * the distinct hash codes (in ascending order)
+	 */
+	public int[] getHashCodes()
+	{
+		int res[] = new int[numHashCodes];
+		int n = 0;
+		if (containsZero)
+			res[n++] = 0;
+		for (int v : table)
+			if (v != 0)
+				res[n++] = v;
+		Arrays.sort(res);
+		return res;
+	}
+}
@@ -0,0 +1,484 @@
+package org.mg.cdklib.cfp;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
+
+/**
+ * compact set of compound indices (replaces LinkedHashSet<Integer> in the fragment index)
+ *
+ * sparse sets are stored as sorted int array, dense sets as bitmap (like a roaring container),
+ * iteration is always in ascending order (which equals insertion order when mining)
+ */
+public class CompoundSet extends AbstractSet<Integer> implements Serializable, Cloneable
+{
+	private static final long serialVersionUID = 1L;
+
+	private static final int[] EMPTY = new int[0];
+
+	/**
+	 * sorted compound indices, valid up to size (null if dense)
+	 */
+	private int values[] = EMPTY;
+
+	/**
+	 * bitmap of compound indices (null if sparse)
+	 */
+	private long words[];
+
+	private int size;
+
+	public CompoundSet()
+	{
+	}
+
+	/**
+	 * creates the set from a strictly ascending array (the array is used, not copied)
+	 */
+	static CompoundSet ofSorted(int[] sorted)
+	{
+		CompoundSet s = new CompoundSet();
+		s.set(sorted, sorted.length);
+		return s;
+	}
+
+	/**
+	 * creates the set from a bitmap of compound indices (the bitmap is copied)
+	 */
+	public static CompoundSet ofBitmap(long[] bitmap)
+	{
+		CompoundSet s = new CompoundSet();
+		s.values = null;
+		s.words = bitmap.clone();
+		for (long w : bitmap)
+			s.size += Long.bitCount(w);
+		s.optimize();
+		return s;
+	}
+
+	/**
+	 * creates a bitmap with numCompounds bits from a set of compound indices
+	 */
+	public static long[] bitmap(Collection<Integer> compounds, int numCompounds)
+	{
+		long bits[] = new long[numWords(numCompounds)];
+		for (Integer c : compounds)
+			bits[c >>> 6] |= 1L << c;
+		return bits;
+	}
+
+	static int numWords(int numBits)
+	{
+		return (numBits + 63) >>> 6;
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	@Override
+	public boolean add(Integer compound)
+	{
+		return add(compound.intValue());
+	}
+
+	public boolean add(int compound)
+	{
+		if (compound < 0)
+			throw new IllegalArgumentException("negative compound index: " + compound);
+		if (words != null)
+		{
+			int w = compound >>> 6;
+			if (w >= words.length)
+				words = Arrays.copyOf(words, Math.max(w + 1, words.length + (words.length >> 1)));
+			if ((words[w] & (1L << compound)) != 0)
+				return false;
+			words[w] |= 1L << compound;
+		}
+		else
+		{
+			int pos = size;
+			if (size > 0 && values[size - 1] >= compound)
+			{
+				pos = Arrays.binarySearch(values, 0, size, compound);
+				if (pos >= 0)
+					return false;
+				pos = -pos - 1;
+			}
+			if (size == values.length)
+				values = Arrays.copyOf(values, Math.max(4, size + (size >> 1)));
+			if (pos < size)
+				System.arraycopy(values, pos, values, pos + 1, size - pos);
+			values[pos] = compound;
+		}
+		size++;
+		return true;
+	}
+
+	public boolean remove(int compound)
+	{
+		if (!contains(compound))
+			return false;
+		if (words != null)
+			words[compound >>> 6] &= ~(1L << compound);
+		else
+		{
+			int pos = Arrays.binarySearch(values, 0, size, compound);
+			System.arraycopy(values, pos + 1, values, pos, size - pos - 1);
+		}
+		size--;
+		return true;
+	}
+
+	@Override
+	public boolean remove(Object o)
+	{
+		return o instanceof Integer && remove(((Integer) o).intValue());
+	}
+
+	@Override
+	public void clear()
+	{
+		values = EMPTY;
+		words = null;
+		size = 0;
+	}
+
+	@Override
+	public boolean contains(Object o)
+	{
+		return o instanceof Integer && contains(((Integer) o).intValue());
+	}
+
+	public boolean contains(int compound)
+	{
+		if (words != null)
+		{
+			int w = compound >>> 6;
+			return compound >= 0 && w < words.length && (words[w] & (1L << compound)) != 0;
+		}
+		else
+			return Arrays.binarySearch(values, 0, size, compound) >= 0;
+	}
+
+	@Override
+	public boolean retainAll(Collection<?> c)
+	{
+		int[] v = toIntArray();
+		int n = 0;
+		for (int i = 0; i < v.length; i++)
+			if (c.contains(v[i]))
+				v[n++] = v[i];
+		if (n == size)
+			return false;
+		set(v, n);
+		return true;
+	}
+
+	private void set(int[] sorted, int n)
+	{
+		clear();
+		values = sorted;
+		size = n;
+		optimize();
+	}
+
+	/**
+	 * the compounds as sorted array
+	 */
+	public int[] toIntArray()
+	{
+		if (words == null)
+			return Arrays.copyOf(values, size);
+		int v[] = new int[size];
+		int n = 0;
+		for (int w = 0; w < words.length; w++)
+		{
+			long word = words[w];
+			while (word != 0)
+			{
+				v[n++] = (w << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+		return v;
+	}
+
+	/**
+	 * the compounds as bitmap with (at least) numCompounds bits
+	 */
+	public long[] toBitmap(int numCompounds)
+	{
+		long bits[] = new long[numWords(numCompounds)];
+		if (words != null)
+			System.arraycopy(words, 0, bits, 0, Math.min(words.length, bits.length));
+		else
+			for (int i = 0; i < size; i++)
+				bits[values[i] >>> 6] |= 1L << values[i];
+		return bits;
+	}
+
+	public int intersectSize(CompoundSet other)
+	{
+		if (words != null && other.words != null)
+		{
+			int n = 0;
+			for (int w = Math.min(words.length, other.words.length) - 1; w >= 0; w--)
+				n += Long.bitCount(words[w] & other.words[w]);
+			return n;
+		}
+		if (words != null)
+			return other.intersectSize(words);
+		if (other.words != null)
+			return intersectSize(other.words);
+
+		// merge sorted arrays
+		int n = 0;
+		int i = 0;
+		int j = 0;
+		while (i < size && j < other.size)
+		{
+			if (values[i] < other.values[j])
+				i++;
+			else if (values[i] > other.values[j])
+				j++;
+			else
+			{
+				n++;
+				i++;
+				j++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * number of compounds that are also set in the bitmap
+	 */
+	public int intersectSize(long[] bitmap)
+	{
+		int n = 0;
+		if (words != null)
+		{
+			for (int w = Math.min(words.length, bitmap.length) - 1; w >= 0; w--)
+				n += Long.bitCount(words[w] & bitmap[w]);
+		}
+		else
+		{
+			for (int i = 0; i < size; i++)
+			{
+				int w = values[i] >>> 6;
+				if (w < bitmap.length && (bitmap[w] & (1L << values[i])) != 0)
+					n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * new set with all compounds that are also set in the bitmap
+	 */
+	public CompoundSet intersect(long[] bitmap)
+	{
+		CompoundSet s = new CompoundSet();
+		if (words != null)
+		{
+			s.values = null;
+			s.words = new long[Math.min(words.length, bitmap.length)];
+			for (int w = 0; w < s.words.length; w++)
+			{
+				s.words[w] = words[w] & bitmap[w];
+				s.size += Long.bitCount(s.words[w]);
+			}
+			s.optimize();
+		}
+		else
+		{
+			int v[] = new int[size];
+			int n = 0;
+			for (int i = 0; i < size; i++)
+			{
+				int w = values[i] >>> 6;
+				if (w < bitmap.length && (bitmap[w] & (1L << values[i])) != 0)
+					v[n++] = values[i];
+			}
+			s.set(v, n);
+		}
+		return s;
+	}
+
+	/**
+	 * switches to the smaller representation and trims the arrays
+	 */
+	public void optimize()
+	{
+		if (size == 0)
+		{
+			clear();
+			return;
+		}
+		int max = words != null ? last() : values[size - 1];
+		int numWords = numWords(max + 1);
+		// bitmap needs 8 bytes per word, sorted array 4 bytes per compound
+		boolean dense = numWords * 2 < size;
+		if (dense && words == null)
+		{
+			long w[] = new long[numWords];
+			for (int i = 0; i < size; i++)
+				w[values[i] >>> 6] |= 1L << values[i];
+			words = w;
+			values = null;
+		}
+		else if (!dense && words != null)
+		{
+			values = toIntArray();
+			words = null;
+		}
+		else if (words != null)
+		{
+			if (words.length != numWords)
+				words = Arrays.copyOf(words, numWords);
+		}
+		else if (values.length != size)
+			values = Arrays.copyOf(values, size);
+	}
+
+	private int last()
+	{
+		for (int w = words.length - 1; w >= 0; w--)
+			if (words[w] != 0)
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(words[w]);
+		throw new NoSuchElementException();
+	}
+
+	@Override
+	public Iterator<Integer> iterator()
+	{
+		if (words == null)
+			return new Iterator<Integer>()
+			{
+				int i = 0;
+				boolean canRemove = false;
+
+				@Override
+				public boolean hasNext()
+				{
+					return i < size;
+				}
+
+				@Override
+				public Integer next()
+				{
+					if (i >= size)
+						throw new NoSuchElementException();
+					canRemove = true;
+					return values[i++];
+				}
+
+				@Override
+				public void remove()
+				{
+					if (!canRemove)
+						throw new IllegalStateException();
+					canRemove = false;
+					i--;
+					System.arraycopy(values, i + 1, values, i, size - i - 1);
+					size--;
+				}
+			};
+		else
+			return new Iterator<Integer>()
+			{
+				int w = 0;
+				long word = words.length > 0 ? words[0] : 0;
+				int last = -1;
+
+				@Override
+				public boolean hasNext()
+				{
+					while (word == 0 && w < words.length - 1)
+						word = words[++w];
+					return word != 0;
+				}
+
+				@Override
+				public Integer next()
+				{
+					if (!hasNext())
+						throw new NoSuchElementException();
+					last = (w << 6) + Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					return last;
+				}
+
+				@Override
+				public void remove()
+				{
+					if (last == -1)
+						throw new IllegalStateException();
+					words[last >>> 6] &= ~(1L << last);
+					size--;
+					last = -1;
+				}
+			};
+	}
+
+	/**
+	 * calls the action for each compound in ascending order (without boxing)
+	 */
+	public void forEachCompound(IntConsumer action)
+	{
+		if (words == null)
+			for (int i = 0; i < size; i++)
+				action.accept(values[i]);
+		else
+			for (int w = 0; w < words.length; w++)
+				for (long word = words[w]; word != 0; word &= word - 1)
+					action.accept((w << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (o == this)
+			return true;
+		if (o instanceof CompoundSet)
+			return size == ((CompoundSet) o).size && intersectSize((CompoundSet) o) == size;
+		return super.equals(o);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		// same as Set.hashCode(), i.e. the sum of the Integer hash codes
+		int h = 0;
+		if (words == null)
+			for (int i = 0; i < size; i++)
+				h += values[i];
+		else
+			for (int c : toIntArray())
+				h += c;
+		return h;
+	}
+
+	@Override
+	public CompoundSet clone()
+	{
+		CompoundSet s = new CompoundSet();
+		s.size = size;
+		if (words != null)
+		{
+			s.words = words.clone();
+			s.values = null;
+		}
+		else
+			s.values = Arrays.copyOf(values, size);
+		return s;
+	}
+}
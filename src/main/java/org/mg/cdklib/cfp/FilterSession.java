@@ -0,0 +1,141 @@
+package org.mg.cdklib.cfp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * state shared by repeated filtering of the same mined data (e.g. the folds of a cross-validation)
+ *
+ * holds the unfiltered fragment index, each filter works on a view of this index (only the
+ * removed fragments are copied), the class of each compound as bitmap, and the groups of
+ * fragments that occur in exactly the same compounds (these are equal in every subset as well)
+ */
+class FilterSession
+{
+	private final FragmentIndex unfiltered;
+	private final int numCompounds;
+
+	/**
+	 * class values in the order used by the chi square filter
+	 */
+	private final List<String> domain;
+
+	/**
+	 * compounds of each class as bitmap
+	 */
+	private final long classBits[][];
+
+	/**
+	 * slot to first slot with the same compound set (computed on demand)
+	 */
+	private volatile int groups[];
+
+	FilterSession(FragmentIndex unfiltered, List<String> endpoints, int numCompounds)
+	{
+		this.unfiltered = unfiltered;
+		this.numCompounds = numCompounds;
+		domain = new ArrayList<String>(new HashSet<String>(endpoints));
+		HashMap<String, Integer> classIdx = new HashMap<>();
+		for (String d : domain)
+			classIdx.put(d, classIdx.size());
+		classBits = new long[domain.size()][CompoundSet.numWords(numCompounds)];
+		for (int c = 0; c < Math.min(numCompounds, endpoints.size()); c++)
+			classBits[classIdx.get(endpoints.get(c))][c >>> 6] |= 1L << c;
+	}
+
+	FragmentIndex getUnfiltered()
+	{
+		return unfiltered;
+	}
+
+	/**
+	 * new view of the unfiltered fragments
+	 */
+	FragmentIndex view()
+	{
+		return unfiltered.view();
+	}
+
+	List<String> getDomain()
+	{
+		return domain;
+	}
+
+	long[] bitmap(Set<Integer> compoundSubset)
+	{
+		return CompoundSet.bitmap(compoundSubset, numCompounds);
+	}
+
+	/**
+	 * compounds of each class within the subset
+	 */
+	long[][] getClassBits(long[] subset)
+	{
+		long res[][] = new long[classBits.length][subset.length];
+		for (int k = 0; k < classBits.length; k++)
+			for (int w = 0; w < subset.length; w++)
+				res[k][w] = classBits[k][w] & subset[w];
+		return res;
+	}
+
+	/**
+	 * for each slot of the unfiltered index the first slot with an equal compound set
+	 */
+	int[] getGroups()
+	{
+		int g[] = groups;
+		if (g == null)
+		{
+			synchronized (this)
+			{
+				g = groups;
+				if (g == null)
+				{
+					g = computeGroups();
+					groups = g;
+				}
+			}
+		}
+		return g;
+	}
+
+	private int[] computeGroups()
+	{
+		int g[] = new int[unfiltered.getNumSlots()];
+		HashMap<Long, List<Integer>> firstSlots = new HashMap<>();
+		for (int s = 0; s < g.length; s++)
+		{
+			g[s] = s;
+			if (unfiltered.isRemoved(s))
+				continue;
+			CompoundSet compounds = unfiltered.getCompounds(s);
+			Long key = hash(compounds);
+			List<Integer> candidates = firstSlots.get(key);
+			if (candidates == null)
+			{
+				candidates = new ArrayList<>(1);
+				firstSlots.put(key, candidates);
+			}
+			for (Integer first : candidates)
+				if (unfiltered.getCompounds(first).equals(compounds))
+				{
+					g[s] = first;
+					break;
+				}
+			if (g[s] == s)
+				candidates.add(s);
+		}
+		return g;
+	}
+
+	private static long hash(CompoundSet compounds)
+	{
+		long h = compounds.size();
+		for (Integer c : compounds)
+			h = (h + c) * 0x9E3779B97F4A7C15L;
+		return h ^ (h >>> 32);
+	}
+}
@@ -0,0 +1,219 @@
+package org.mg.cdklib.cfp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * sub- and super-fragments of all fragments of an index: fragment f2 is a sub-fragment of f1 if
+ * it has fewer atoms and each occurrence of f1 covers an occurrence of f2 (in the first compound
+ * of f1, as f1 is contained in each of its compounds, its sub-fragments are as well)
+ *
+ * the fragments are grouped by this compound, each compound is fingerprinted once, groups are
+ * processed in parallel, occurrences are compared as atom bitsets, only fragments with fewer atoms
+ * are candidates
+ *
+ * the result is stored as sorted slot arrays (compressed row storage over the slots of the index)
+ */
+class FragmentHierarchy
+{
+	private final FragmentIndex index;
+
+	/**
+	 * sub-fragments of slot s are subSlots[subOffsets[s]] to subSlots[subOffsets[s+1]-1]
+	 */
+	private final int subOffsets[];
+	private final int subSlots[];
+	private final int superOffsets[];
+	private final int superSlots[];
+
+	/**
+	 * @param compoundToSlots
+	 *            for each compound the sorted slots of its fragments
+	 */
+	FragmentHierarchy(final BasicCFPMiner miner, final FragmentIndex index,
+			final int[][] compoundToSlots, int numThreads)
+	{
+		this.index = index;
+		int numSlots = index.getNumSlots();
+
+		// fragments grouped by their first compound (in order of the compounds)
+		final List<Integer> compounds = new ArrayList<>();
+		final List<int[]> groups = new ArrayList<>();
+		int first[] = new int[numSlots];
+		int groupSize[] = new int[miner.getNumCompounds()];
+		for (int s = index.nextSlot(0); s != -1; s = index.nextSlot(s + 1))
+		{
+			first[s] = index.getCompounds(s).iterator().next();
+			groupSize[first[s]]++;
+		}
+		int groupIdx[] = new int[groupSize.length];
+		for (int c = 0; c < groupSize.length; c++)
+			if (groupSize[c] > 0)
+			{
+				groupIdx[c] = groups.size();
+				compounds.add(c);
+				groups.add(new int[groupSize[c]]);
+				groupSize[c] = 0;
+			}
+		for (int s = index.nextSlot(0); s != -1; s = index.nextSlot(s + 1))
+			groups.get(groupIdx[first[s]])[groupSize[first[s]]++] = s;
+
+		final int subs[][] = new int[numSlots][];
+		ParallelBlocks.run(numThreads, groups.size(), new ParallelBlocks.Block<Void>()
+		{
+			@Override
+			public Void compute(int from, int to) throws Exception
+			{
+				// each slot belongs to exactly one group, no synchronization needed
+				for (int i = from; i < to; i++)
+				{
+					int c = compounds.get(i);
+					MoleculeFingerprint fp = miner.getTrainingFingerprint(c);
+					mineGroup(groups.get(i), compoundToSlots[c], fp, subs);
+				}
+				return null;
+			}
+		});
+
+		// super-fragments are the transposed sub-fragments (sorted, the slots are visited in order)
+		subOffsets = new int[numSlots + 1];
+		superOffsets = new int[numSlots + 1];
+		for (int s = 0; s < numSlots; s++)
+		{
+			subOffsets[s + 1] = subOffsets[s] + (subs[s] == null ? 0 : subs[s].length);
+			if (subs[s] != null)
+				for (int sub : subs[s])
+					superOffsets[sub + 1]++;
+		}
+		for (int s = 0; s < numSlots; s++)
+			superOffsets[s + 1] += superOffsets[s];
+		subSlots = new int[subOffsets[numSlots]];
+		superSlots = new int[superOffsets[numSlots]];
+		int superPos[] = Arrays.copyOf(superOffsets, numSlots);
+		for (int s = 0; s < numSlots; s++)
+			if (subs[s] != null)
+			{
+				System.arraycopy(subs[s], 0, subSlots, subOffsets[s], subs[s].length);
+				for (int sub : subs[s])
+					superSlots[superPos[sub]++] = s;
+			}
+	}
+
+	/**
+	 * sub-fragments of the fragments of a group, all fragments of the compound are candidates
+	 *
+	 * @param slots
+	 *            fragments whose first compound is the fingerprinted compound
+	 * @param compoundSlots
+	 *            sorted slots of all fragments of the compound
+	 */
+	private void mineGroup(int[] slots, int[] compoundSlots, MoleculeFingerprint fp, int[][] subs)
+	{
+		// distinct occurrences of each fragment of the compound as atom bitsets
+		@SuppressWarnings("unchecked")
+		List<long[]> occurrences[] = new List[compoundSlots.length];
+		for (int i = 0; i < fp.size(); i++)
+		{
+			int pos = Arrays.binarySearch(compoundSlots, index.slotOf(fp.hashCodes[i]));
+			if (pos < 0)
+				continue;
+			long bits[] = new long[CompoundSet.numWords(fp.atomCount)];
+			for (int j = fp.atomOffsets[i]; j < fp.atomOffsets[i + 1]; j++)
+				bits[fp.atoms[j] >>> 6] |= 1L << fp.atoms[j];
+			if (occurrences[pos] == null)
+				occurrences[pos] = new ArrayList<>(1);
+			boolean contained = false;
+			for (long[] b : occurrences[pos])
+				if (Arrays.equals(b, bits))
+					contained = true;
+			if (!contained)
+				occurrences[pos].add(bits);
+		}
+
+		// candidates sorted by number of atoms, sub-fragments of f1 are within a prefix
+		int numAtoms[] = new int[compoundSlots.length];
+		long order[] = new long[compoundSlots.length];
+		for (int p = 0; p < compoundSlots.length; p++)
+		{
+			numAtoms[p] = cardinality(occurrences[p].get(0));
+			order[p] = ((long) numAtoms[p] << 32) | p;
+		}
+		Arrays.sort(order);
+
+		int res[] = new int[compoundSlots.length];
+		for (int s1 : slots)
+		{
+			int p1 = Arrays.binarySearch(compoundSlots, s1);
+			List<long[]> atoms1 = occurrences[p1];
+			int n = 0;
+			for (int k = 0; k < order.length; k++)
+			{
+				int p2 = (int) order[k];
+				if (numAtoms[p2] >= numAtoms[p1])
+					break;
+				List<long[]> atoms2 = occurrences[p2];
+				if (atoms2.size() >= atoms1.size() && isIncluded(atoms2, atoms1))
+					res[n++] = compoundSlots[p2];
+			}
+			if (n > 0)
+			{
+				subs[s1] = Arrays.copyOf(res, n);
+				Arrays.sort(subs[s1]);
+			}
+		}
+	}
+
+	/**
+	 * true if each occurrence of the fragment covers an occurrence of the sub-fragment
+	 */
+	private static boolean isIncluded(List<long[]> sub, List<long[]> fragment)
+	{
+		for (long[] atoms1 : fragment)
+		{
+			boolean found = false;
+			for (long[] atoms2 : sub)
+				if (MoleculeFingerprint.isSubset(atoms2, atoms1))
+				{
+					found = true;
+					break;
+				}
+			if (!found)
+				return false;
+		}
+		return true;
+	}
+
+	private static int cardinality(long[] bits)
+	{
+		int n = 0;
+		for (long w : bits)
+			n += Long.bitCount(w);
+		return n;
+	}
+
+	/**
+	 * view of the sub-fragments (in fragment order), null if there are none
+	 */
+	Set<CFPFragment> getSubFragments(CFPFragment fragment)
+	{
+		return get(fragment, subOffsets, subSlots);
+	}
+
+	/**
+	 * view of the super-fragments (in fragment order), null if there are none
+	 */
+	Set<CFPFragment> getSuperFragments(CFPFragment fragment)
+	{
+		return get(fragment, superOffsets, superSlots);
+	}
+
+	private Set<CFPFragment> get(CFPFragment fragment, int[] offsets, int[] slots)
+	{
+		int s = index.slotOf(fragment);
+		if (s == -1 || offsets[s] == offsets[s + 1])
+			return null;
+		return index.fragments(Arrays.copyOfRange(slots, offsets[s], offsets[s + 1]));
+	}
+}
@@ -0,0 +1,401 @@
+package org.mg.cdklib.cfp;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * fragment to compound index (replaces LinkedHashMap<CFPFragment, LinkedHashSet<Integer>>)
+ *
+ * fragment ids are mapped to slots with an int-keyed open-addressing hash table, slots are
+ * assigned in insertion order, removed fragments are only flagged (iteration order is kept)
+ */
+public class FragmentIndex implements Serializable, Cloneable
+{
+	private static final long serialVersionUID = 1L;
+
+	private int ids[] = new int[16];
+	private CompoundSet compounds[] = new CompoundSet[16];
+	private int numSlots;
+	private int size;
+	private BitSet removed = new BitSet();
+
+	/**
+	 * views share ids and compound sets with the index they were created from
+	 */
+	private transient boolean view;
+
+	/**
+	 * open addressing with linear probing, stores slot + 1 (0 is empty)
+	 */
+	private int table[] = new int[32];
+
+	public FragmentIndex()
+	{
+	}
+
+	/**
+	 * index with the given fragments (in this order) and compound sets
+	 */
+	FragmentIndex(int[] ids, CompoundSet[] compounds)
+	{
+		this.ids = Arrays.copyOf(ids, Math.max(16, ids.length));
+		this.compounds = Arrays.copyOf(compounds, this.ids.length);
+		numSlots = ids.length;
+		size = ids.length;
+		int capacity = 32;
+		while (capacity < numSlots * 2)
+			capacity *= 2;
+		table = new int[capacity];
+		for (int s = 0; s < numSlots; s++)
+		{
+			if (find(ids[s]) != -1)
+				throw new IllegalArgumentException("duplicate fragment id " + ids[s]);
+			put(ids[s], s);
+		}
+	}
+
+	private static int hash(int id)
+	{
+		int h = id * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * slot of fragment id (including removed fragments), -1 if not contained
+	 */
+	private int find(int id)
+	{
+		int mask = table.length - 1;
+		for (int h = hash(id) & mask; table[h] != 0; h = (h + 1) & mask)
+			if (ids[table[h] - 1] == id)
+				return table[h] - 1;
+		return -1;
+	}
+
+	private void put(int id, int slot)
+	{
+		int mask = table.length - 1;
+		int h = hash(id) & mask;
+		while (table[h] != 0)
+			h = (h + 1) & mask;
+		table[h] = slot + 1;
+	}
+
+	/**
+	 * slot of the fragment, -1 if the fragment is not contained (or has been removed)
+	 */
+	public int slotOf(int id)
+	{
+		int slot = find(id);
+		return (slot == -1 || removed.get(slot)) ? -1 : slot;
+	}
+
+	public int slotOf(CFPFragment fragment)
+	{
+		return slotOf(fragment.getId());
+	}
+
+	/**
+	 * adds compound to fragment, removed fragments are re-activated
+	 */
+	public void add(int id, int compound)
+	{
+		checkNotView();
+		int slot = find(id);
+		if (slot == -1)
+		{
+			if (numSlots == ids.length)
+			{
+				ids = Arrays.copyOf(ids, numSlots * 2);
+				compounds = Arrays.copyOf(compounds, numSlots * 2);
+			}
+			slot = numSlots++;
+			ids[slot] = id;
+			compounds[slot] = new CompoundSet();
+			if (numSlots * 2 > table.length)
+			{
+				table = new int[table.length * 2];
+				for (int s = 0; s < numSlots; s++)
+					put(ids[s], s);
+			}
+			else
+				put(id, slot);
+			size++;
+		}
+		else if (removed.get(slot))
+		{
+			removed.clear(slot);
+			size++;
+		}
+		compounds[slot].add(compound);
+	}
+
+	public void add(CFPFragment fragment, int compound)
+	{
+		add(fragment.getId(), compound);
+	}
+
+	public CompoundSet get(CFPFragment fragment)
+	{
+		int slot = slotOf(fragment.getId());
+		return slot == -1 ? null : getCompounds(slot);
+	}
+
+	public boolean containsKey(CFPFragment fragment)
+	{
+		return slotOf(fragment.getId()) != -1;
+	}
+
+	/**
+	 * true if the compound is contained in the compound set of the slot
+	 */
+	public boolean contains(int slot, int compound)
+	{
+		return compounds[slot].contains(compound);
+	}
+
+	private void checkNotView()
+	{
+		if (view)
+			throw new UnsupportedOperationException(
+					"fragment index view only supports removing fragments");
+	}
+
+	/**
+	 * view with the (not removed) fragments of this index, fragments can be removed from the view
+	 * without affecting this index, the slots and compound sets are shared (i.e. this index must
+	 * not be modified while the view is in use, the view itself cannot be extended)
+	 */
+	FragmentIndex view()
+	{
+		FragmentIndex f = new FragmentIndex();
+		f.ids = ids;
+		f.compounds = compounds;
+		f.numSlots = numSlots;
+		f.size = size;
+		f.removed = (BitSet) removed.clone();
+		f.table = table;
+		f.view = true;
+		return f;
+	}
+
+	/**
+	 * true if this is a view of the index (same slots)
+	 */
+	boolean isViewOf(FragmentIndex index)
+	{
+		return view && compounds == index.compounds;
+	}
+
+	/**
+	 * read-only indices do not support add(), remove() and optimize()
+	 */
+	public boolean isReadOnly()
+	{
+		return false;
+	}
+
+	public CompoundSet remove(CFPFragment fragment)
+	{
+		int slot = slotOf(fragment.getId());
+		if (slot == -1)
+			return null;
+		removed.set(slot);
+		size--;
+		return compounds[slot];
+	}
+
+	/**
+	 * removes the fragment of the (not removed) slot
+	 */
+	public void removeSlot(int slot)
+	{
+		if (slot >= numSlots || removed.get(slot))
+			throw new IllegalArgumentException("no fragment at slot " + slot);
+		removed.set(slot);
+		size--;
+	}
+
+	/**
+	 * number of (not removed) fragments
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * number of slots, including removed fragments
+	 */
+	public int getNumSlots()
+	{
+		return numSlots;
+	}
+
+	public boolean isRemoved(int slot)
+	{
+		return removed.get(slot);
+	}
+
+	/**
+	 * next not removed slot >= slot, -1 if there is none
+	 */
+	public int nextSlot(int slot)
+	{
+		int s = removed.nextClearBit(slot);
+		return s < numSlots ? s : -1;
+	}
+
+	public int getId(int slot)
+	{
+		return ids[slot];
+	}
+
+	public CompoundSet getCompounds(int slot)
+	{
+		return compounds[slot];
+	}
+
+	/**
+	 * switches each compound set to its most compact representation
+	 */
+	public void optimize()
+	{
+		checkNotView();
+		for (int s = 0; s < numSlots; s++)
+			compounds[s].optimize();
+	}
+
+	/**
+	 * view of the (not removed) fragments in insertion order
+	 */
+	public Set<CFPFragment> keySet()
+	{
+		return new AbstractSet<CFPFragment>()
+		{
+			@Override
+			public Iterator<CFPFragment> iterator()
+			{
+				return new Iterator<CFPFragment>()
+				{
+					int slot = nextSlot(0);
+
+					@Override
+					public boolean hasNext()
+					{
+						return slot != -1;
+					}
+
+					@Override
+					public CFPFragment next()
+					{
+						if (slot == -1)
+							throw new NoSuchElementException();
+						CFPFragment f = new CFPFragment(getId(slot));
+						slot = nextSlot(slot + 1);
+						return f;
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o)
+			{
+				return o instanceof CFPFragment && containsKey((CFPFragment) o);
+			}
+
+			@Override
+			public int size()
+			{
+				return FragmentIndex.this.size();
+			}
+		};
+	}
+
+	/**
+	 * view of the fragments given as sorted slot array
+	 */
+	public Set<CFPFragment> fragments(final int[] slots)
+	{
+		return new AbstractSet<CFPFragment>()
+		{
+			@Override
+			public Iterator<CFPFragment> iterator()
+			{
+				return new Iterator<CFPFragment>()
+				{
+					int i = 0;
+
+					@Override
+					public boolean hasNext()
+					{
+						return i < slots.length;
+					}
+
+					@Override
+					public CFPFragment next()
+					{
+						if (i >= slots.length)
+							throw new NoSuchElementException();
+						return new CFPFragment(getId(slots[i++]));
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o)
+			{
+				if (!(o instanceof CFPFragment))
+					return false;
+				int slot = slotOf((CFPFragment) o);
+				return slot != -1 && Arrays.binarySearch(slots, slot) >= 0;
+			}
+
+			@Override
+			public int size()
+			{
+				return slots.length;
+			}
+		};
+	}
+
+	/**
+	 * compound to fragment index: for each compound the sorted slots of its (not removed) fragments
+	 */
+	public int[][] compoundToSlots(int numCompounds)
+	{
+		final int counts[] = new int[numCompounds];
+		for (int s = nextSlot(0); s != -1; s = nextSlot(s + 1))
+			getCompounds(s).forEachCompound(c -> counts[c]++);
+		final int res[][] = new int[numCompounds][];
+		for (int c = 0; c < numCompounds; c++)
+			res[c] = new int[counts[c]];
+		Arrays.fill(counts, 0);
+		for (int s = nextSlot(0); s != -1; s = nextSlot(s + 1))
+		{
+			final int slot = s;
+			getCompounds(s).forEachCompound(c -> res[c][counts[c]++] = slot);
+		}
+		return res;
+	}
+
+	@Override
+	public FragmentIndex clone()
+	{
+		FragmentIndex f = new FragmentIndex();
+		f.ids = Arrays.copyOf(ids, Math.max(1, numSlots));
+		f.compounds = new CompoundSet[f.ids.length];
+		for (int s = 0; s < numSlots; s++)
+			f.compounds[s] = compounds[s].clone();
+		f.numSlots = numSlots;
+		f.size = size;
+		f.removed = (BitSet) removed.clone();
+		f.table = table.clone();
+		return f;
+	}
+}
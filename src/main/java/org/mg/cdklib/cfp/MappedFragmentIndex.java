@@ -0,0 +1,121 @@
+package org.mg.cdklib.cfp;
+
+import java.io.ObjectStreamException;
+
+/**
+ * read-only fragment index backed by a memory-mapped binary model file (see {@link CFPMinerIO})
+ *
+ * fragments are looked up with binary search in the sorted id array of the file, compound sets
+ * are decoded from the postings on access, nothing is copied to the heap when opening the file
+ * (processes that map the same file share the page cache)
+ */
+class MappedFragmentIndex extends FragmentIndex
+{
+	private static final long serialVersionUID = 1L;
+
+	private final transient CFPMinerIO.Layout layout;
+
+	MappedFragmentIndex(CFPMinerIO.Layout layout)
+	{
+		this.layout = layout;
+	}
+
+	@Override
+	public int slotOf(int id)
+	{
+		return layout.find(id);
+	}
+
+	@Override
+	public void add(int id, int compound)
+	{
+		throw new UnsupportedOperationException("memory-mapped fragment index is read-only");
+	}
+
+	@Override
+	public CompoundSet remove(CFPFragment fragment)
+	{
+		throw new UnsupportedOperationException("memory-mapped fragment index is read-only");
+	}
+
+	@Override
+	public void removeSlot(int slot)
+	{
+		throw new UnsupportedOperationException("memory-mapped fragment index is read-only");
+	}
+
+	@Override
+	public void optimize()
+	{
+	}
+
+	@Override
+	public boolean contains(int slot, int compound)
+	{
+		return layout.contains(slot, compound);
+	}
+
+	@Override
+	public boolean isReadOnly()
+	{
+		return true;
+	}
+
+	@Override
+	public int size()
+	{
+		return layout.numFragments;
+	}
+
+	@Override
+	public int getNumSlots()
+	{
+		return layout.numFragments;
+	}
+
+	@Override
+	public boolean isRemoved(int slot)
+	{
+		return false;
+	}
+
+	@Override
+	public int nextSlot(int slot)
+	{
+		return slot < layout.numFragments ? slot : -1;
+	}
+
+	@Override
+	public int getId(int slot)
+	{
+		return layout.getId(slot);
+	}
+
+	@Override
+	public CompoundSet getCompounds(int slot)
+	{
+		return CompoundSet.ofSorted(layout.getCompounds(slot));
+	}
+
+	/**
+	 * heap copy of the index (that can be modified)
+	 */
+	@Override
+	public FragmentIndex clone()
+	{
+		int n = layout.numFragments;
+		int ids[] = new int[n];
+		CompoundSet compounds[] = new CompoundSet[n];
+		for (int s = 0; s < n; s++)
+		{
+			ids[s] = layout.getId(s);
+			compounds[s] = getCompounds(s);
+		}
+		return new FragmentIndex(ids, compounds);
+	}
+
+	private Object writeReplace() throws ObjectStreamException
+	{
+		return clone();
+	}
+}
@@ -0,0 +1,162 @@
+package org.mg.cdklib.cfp;
+
+import java.util.Arrays;
+
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.fingerprint.CircularFingerprinter;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * the raw (unfolded) circular fingerprint of a single molecule, in the order computed by the
+ * fingerprinter, decoupled from the fingerprinter instance so that it can be computed in a worker
+ * thread and indexed later on
+ *
+ * optionally keeps the atoms of each fragment occurrence (compressed row storage)
+ */
+class MoleculeFingerprint
+{
+	final int hashCodes[];
+	final int iterations[];
+	final int numAtoms[];
+
+	final int atomCount;
+	/**
+	 * atoms of occurrence i are atoms[atomOffsets[i]] to atoms[atomOffsets[i+1]-1], null if not stored
+	 */
+	final int atomOffsets[];
+	final int atoms[];
+
+	MoleculeFingerprint(CircularFingerprinter fp, IAtomContainer mol) throws CDKException
+	{
+		this(fp, mol, false);
+	}
+
+	MoleculeFingerprint(CircularFingerprinter fp, IAtomContainer mol, boolean storeAtoms)
+			throws CDKException
+	{
+		fp.calculate(mol);
+		int n = fp.getFPCount();
+		hashCodes = new int[n];
+		iterations = new int[n];
+		numAtoms = new int[n];
+		atomCount = mol.getAtomCount();
+		int total = 0;
+		for (int i = 0; i < n; i++)
+		{
+			CircularFingerprinter.FP f = fp.getFP(i);
+			hashCodes[i] = f.hashCode;
+			iterations[i] = f.iteration;
+			numAtoms[i] = f.atoms.length;
+			total += f.atoms.length;
+		}
+		if (storeAtoms)
+		{
+			atomOffsets = new int[n + 1];
+			atoms = new int[total];
+			for (int i = 0; i < n; i++)
+			{
+				int a[] = fp.getFP(i).atoms;
+				System.arraycopy(a, 0, atoms, atomOffsets[i], a.length);
+				atomOffsets[i + 1] = atomOffsets[i] + a.length;
+			}
+		}
+		else
+		{
+			atomOffsets = null;
+			atoms = null;
+		}
+	}
+
+	private MoleculeFingerprint(int[] hashCodes, int[] iterations, int[] numAtoms, int atomCount,
+			int[] atomOffsets, int[] atoms)
+	{
+		this.hashCodes = hashCodes;
+		this.iterations = iterations;
+		this.numAtoms = numAtoms;
+		this.atomCount = atomCount;
+		this.atomOffsets = atomOffsets;
+		this.atoms = atoms;
+	}
+
+	/**
+	 * the fragments up to the given iteration, i.e. the fingerprint for a smaller diameter
+	 * (iteration = diameter / 2), the fingerprinter computes the iterations one after another
+	 */
+	MoleculeFingerprint restrict(int maxIteration, boolean keepAtoms)
+	{
+		int n = 0;
+		for (int i = 0; i < hashCodes.length; i++)
+			if (iterations[i] <= maxIteration)
+				n++;
+		if (n == hashCodes.length && (keepAtoms || atoms == null))
+			return this;
+		int h[] = new int[n];
+		int it[] = new int[n];
+		int na[] = new int[n];
+		int offsets[] = keepAtoms && atoms != null ? new int[n + 1] : null;
+		int a[] = null;
+		if (offsets != null)
+		{
+			int total = 0;
+			for (int i = 0; i < hashCodes.length; i++)
+				if (iterations[i] <= maxIteration)
+					total += numAtoms[i];
+			a = new int[total];
+		}
+		int j = 0;
+		for (int i = 0; i < hashCodes.length; i++)
+			if (iterations[i] <= maxIteration)
+			{
+				h[j] = hashCodes[i];
+				it[j] = iterations[i];
+				na[j] = numAtoms[i];
+				if (offsets != null)
+				{
+					System.arraycopy(atoms, atomOffsets[i], a, offsets[j], numAtoms[i]);
+					offsets[j + 1] = offsets[j] + numAtoms[i];
+				}
+				j++;
+			}
+		return new MoleculeFingerprint(h, it, na, atomCount, offsets, a);
+	}
+
+	int size()
+	{
+		return hashCodes.length;
+	}
+
+	/**
+	 * atoms of the first occurrence of the fragment, null if the fragment does not occur
+	 */
+	int[] getAtoms(int hashCode)
+	{
+		for (int i = 0; i < hashCodes.length; i++)
+			if (hashCodes[i] == hashCode)
+				return Arrays.copyOfRange(atoms, atomOffsets[i], atomOffsets[i + 1]);
+		return null;
+	}
+
+	/**
+	 * bitset of all atoms of all occurrences of the fragment (empty if the fragment does not occur)
+	 */
+	long[] getAtomBits(int hashCode)
+	{
+		long bits[] = new long[CompoundSet.numWords(atomCount)];
+		for (int i = 0; i < hashCodes.length; i++)
+			if (hashCodes[i] == hashCode)
+				for (int j = atomOffsets[i]; j < atomOffsets[i + 1]; j++)
+					bits[atoms[j] >>> 6] |= 1L << atoms[j];
+		return bits;
+	}
+
+	/**
+	 * true if all bits of sub are set in sup
+	 */
+	static boolean isSubset(long[] sub, long[] sup)
+	{
+		for (int w = 0; w < sub.length; w++)
+			if ((sub[w] & ~(w < sup.length ? sup[w] : 0L)) != 0)
+				return false;
+		return true;
+	}
+}
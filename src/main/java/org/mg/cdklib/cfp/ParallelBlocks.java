@@ -0,0 +1,108 @@
+package org.mg.cdklib.cfp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * splits the range [0,n) into consecutive blocks that are processed by a fixed worker pool,
+ * results are handed to the merger in block order (i.e. as if the blocks were computed sequentially)
+ */
+class ParallelBlocks
+{
+	interface Block<T>
+	{
+		T compute(int from, int to) throws Exception;
+	}
+
+	interface Merger<T>
+	{
+		void merge(T result) throws Exception;
+	}
+
+	static int blockSize(int n, int numThreads)
+	{
+		// a few blocks per thread to balance molecules of different size
+		return Math.max(1, (int) Math.ceil(n / (double) (numThreads * 4)));
+	}
+
+	static <T> void run(int numThreads, int n, final Block<T> block, Merger<T> merger)
+			throws Exception
+	{
+		if (numThreads <= 1 || n <= 1)
+		{
+			if (n > 0)
+				merger.merge(block.compute(0, n));
+			return;
+		}
+		int size = blockSize(n, numThreads);
+		ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+		try
+		{
+			List<Future<T>> futures = new ArrayList<>();
+			for (int from = 0; from < n; from += size)
+			{
+				final int f = from;
+				final int t = Math.min(n, from + size);
+				futures.add(pool.submit(() -> block.compute(f, t)));
+			}
+			// merge in order while the remaining blocks are still computed
+			for (int i = 0; i < futures.size(); i++)
+			{
+				merger.merge(get(futures.get(i)));
+				futures.set(i, null);
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * runs blocks without results (e.g. blocks that write to disjoint parts of an array), checked
+	 * exceptions are rethrown wrapped in a RuntimeException
+	 */
+	static <T> void run(int numThreads, int n, Block<T> block)
+	{
+		runUnchecked(numThreads, n, block, result -> {
+		});
+	}
+
+	/**
+	 * like {@link #run(int, int, Block, Merger)}, checked exceptions are rethrown wrapped in a
+	 * RuntimeException
+	 */
+	static <T> void runUnchecked(int numThreads, int n, Block<T> block, Merger<T> merger)
+	{
+		try
+		{
+			run(numThreads, n, block, merger);
+		}
+		catch (RuntimeException e)
+		{
+			throw e;
+		}
+		catch (Exception e)
+		{
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws Exception
+	{
+		try
+		{
+			return future.get();
+		}
+		catch (ExecutionException e)
+		{
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package org.mg.cdklib.cfp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class AppendTest
+{
+	private static final List<String> SMILES = TestData.SMILES;
+	private static final int HALF = SMILES.size() / 2;
+
+	private static List<String> endpoints(int from, int to)
+	{
+		List<String> l = new ArrayList<>();
+		for (int i = from; i < to; i++)
+			l.add(i % 3 == 0 ? "active" : "inactive");
+		return l;
+	}
+
+	private static <T extends BasicCFPMiner> T init(T miner)
+	{
+		miner.setType(CFPType.ecfp4);
+		miner.setFeatureSelection(FeatureSelection.filt);
+		miner.setHashfoldsize(32);
+		miner.setAbsMinFreq(2);
+		miner.setNumThreads(2);
+		return miner;
+	}
+
+	/**
+	 * fragments (in order) with their compounds
+	 */
+	private static List<String> content(BasicCFPMiner miner)
+	{
+		List<String> l = new ArrayList<>();
+		for (int i = 0; i < miner.getNumFragments(); i++)
+		{
+			CFPFragment f = miner.getFragmentViaIdx(i);
+			l.add(f.getId() + " " + new ArrayList<>(miner.getCompoundsForFragment(f)));
+		}
+		return l;
+	}
+
+	@Test
+	public void testAppend() throws Exception
+	{
+		BasicCFPMiner all = init(new BasicCFPMiner());
+		all.mine(SMILES);
+		BasicCFPMiner miner = init(new BasicCFPMiner());
+		miner.mine(SMILES.subList(0, HALF));
+		miner.append(SMILES.subList(HALF, SMILES.size()));
+		assertEquals(all.getNumCompounds(), miner.getNumCompounds());
+		assertEquals(all.getTrainingDataSmiles(), miner.getTrainingDataSmiles());
+		assertEquals(content(all), content(miner));
+		for (int c = 0; c < all.getNumCompounds(); c++)
+			assertEquals(all.getFragmentsForCompound(c), miner.getFragmentsForCompound(c));
+	}
+
+	@Test
+	public void testAppendInvalidSmiles() throws Exception
+	{
+		BasicCFPMiner miner = init(new BasicCFPMiner());
+		miner.mine(SMILES.subList(0, HALF));
+		// build the compound to fragment index (is extended when appending)
+		miner.getFragmentsForCompound(0);
+		List<String> before = content(miner);
+		try
+		{
+			miner.append(Arrays.asList(SMILES.get(HALF), "CC!", SMILES.get(HALF + 1)));
+			fail("invalid smiles not detected");
+		}
+		catch (Exception e)
+		{
+			// expected
+		}
+		assertEquals(HALF, miner.getNumCompounds());
+		assertEquals(SMILES.subList(0, HALF), miner.getTrainingDataSmiles());
+		assertEquals(before, content(miner));
+
+		// the miner is still usable
+		miner.append(SMILES.subList(HALF, SMILES.size()));
+		BasicCFPMiner all = init(new BasicCFPMiner());
+		all.mine(SMILES);
+		assertEquals(content(all), content(miner));
+		for (int c = 0; c < all.getNumCompounds(); c++)
+			assertEquals(all.getFragmentsForCompound(c), miner.getFragmentsForCompound(c));
+	}
+
+	@Test
+	public void testAppendFailureKeepsFilter() throws Exception
+	{
+		CFPMiner miner = init(new CFPMiner(endpoints(0, HALF)));
+		miner.mine(SMILES.subList(0, HALF));
+		miner.applyFilter();
+		List<String> filtered = content(miner);
+
+		// fails while fingerprinting (after the duplicate check)
+		miner.setListener(new CFPMinerListener()
+		{
+			@Override
+			public void progress(BasicCFPMiner m, Stage stage, long done, long total)
+			{
+				throw new IllegalStateException("progress failed");
+			}
+		});
+		try
+		{
+			miner.append(SMILES.subList(HALF, SMILES.size()), endpoints(HALF, SMILES.size()));
+			fail("exception of the listener not passed on");
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("progress failed", e.getMessage());
+		}
+		assertEquals(HALF, miner.getNumCompounds());
+		assertEquals(HALF, miner.getEndpoints().size());
+		assertEquals(filtered, content(miner));
+
+		// append and filter again equals mining all compounds at once
+		miner.setListener(null);
+		miner.append(SMILES.subList(HALF, SMILES.size()), endpoints(HALF, SMILES.size()));
+		miner.applyFilter();
+		CFPMiner all = init(new CFPMiner(endpoints(0, SMILES.size())));
+		all.mine(SMILES);
+		all.applyFilter();
+		assertEquals(content(all), content(miner));
+	}
+}
@@ -0,0 +1,189 @@
+package org.mg.cdklib.cfp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class CFPMinerIOTest
+{
+	private static final int ENCODINGS[] = { CFPMinerIO.POSTINGS_VARINT,
+			CFPMinerIO.POSTINGS_INT32 };
+
+	private static List<String> endpoints()
+	{
+		List<String> l = new ArrayList<>();
+		for (int i = 0; i < TestData.SMILES.size(); i++)
+			l.add(i % 3 == 0 ? "active" : "inactive");
+		return l;
+	}
+
+	/**
+	 * all settings differ from the defaults
+	 */
+	private static <T extends BasicCFPMiner> T init(T miner, CFPType type,
+			FeatureSelection featureSelection)
+	{
+		miner.setType(type);
+		miner.setFeatureSelection(featureSelection);
+		miner.setHashfoldsize(32);
+		miner.setAbsMinFreq(3);
+		miner.setNumThreads(2);
+		miner.setStoreAtoms(true);
+		miner.setAtomsCacheSize(17);
+		miner.setTrackCollisions(false);
+		miner.setTestCacheSize(11);
+		miner.setTestCacheKey(BasicCFPMiner.TestCacheKey.inchiKey);
+		miner.setIncludedCacheSize(13);
+		return miner;
+	}
+
+	private static File write(BasicCFPMiner miner, int encoding) throws IOException
+	{
+		File f = File.createTempFile("cfp-miner", ".bin");
+		f.deleteOnExit();
+		CFPMinerIO.write(miner, f.getAbsolutePath(), encoding);
+		return f;
+	}
+
+	private static void assertSameMiner(BasicCFPMiner expected, BasicCFPMiner actual)
+	{
+		assertEquals(expected.getClass(), actual.getClass());
+		assertEquals(expected.getCFPType(), actual.getCFPType());
+		assertEquals(expected.getFeatureSelection(), actual.getFeatureSelection());
+		assertEquals(expected.getHashfoldsize(), actual.getHashfoldsize());
+		assertEquals(expected.getAbsMinFreq(), actual.getAbsMinFreq());
+		assertEquals(expected.getNumThreads(), actual.getNumThreads());
+		assertEquals(expected.isStoreAtoms(), actual.isStoreAtoms());
+		assertEquals(expected.atomsCacheSize, actual.atomsCacheSize);
+		assertEquals(expected.isTrackCollisions(), actual.isTrackCollisions());
+		assertEquals(expected.getTestCacheSize(), actual.getTestCacheSize());
+		assertEquals(expected.getTestCacheKey(), actual.getTestCacheKey());
+		assertEquals(expected.getIncludedCacheSize(), actual.getIncludedCacheSize());
+		assertEquals(expected.getNumCompounds(), actual.getNumCompounds());
+		assertEquals(expected.numUnfoldedConflicts, actual.numUnfoldedConflicts);
+		assertEquals(expected.getTrainingDataSmiles(), actual.getTrainingDataSmiles());
+		if (expected.collisions == null)
+			assertNull(actual.collisions);
+		else
+			assertArrayEquals(expected.collisions.getHashCodes(),
+					actual.collisions.getHashCodes());
+
+		// fragments in order with their compounds
+		assertEquals(expected.getNumFragments(), actual.getNumFragments());
+		for (int i = 0; i < expected.getNumFragments(); i++)
+		{
+			CFPFragment f = expected.getFragmentViaIdx(i);
+			assertEquals(f, actual.getFragmentViaIdx(i));
+			assertEquals(new ArrayList<>(expected.getCompoundsForFragment(f)),
+					new ArrayList<>(actual.getCompoundsForFragment(f)));
+			for (int c = 0; c < expected.getNumCompounds(); c++)
+				assertEquals(expected.isFragmentIncludedInCompound(c, f),
+						actual.isFragmentIncludedInCompound(c, f));
+		}
+		for (int c = 0; c < expected.getNumCompounds(); c++)
+			assertEquals(expected.getFragmentsForCompound(c), actual.getFragmentsForCompound(c));
+	}
+
+	private static void assertSameMiner(CFPMiner expected, CFPMiner actual) throws Exception
+	{
+		assertSameMiner((BasicCFPMiner) expected, (BasicCFPMiner) actual);
+		assertEquals(expected.verbose, actual.verbose);
+		assertEquals(expected.getEndpoints(), actual.getEndpoints());
+		assertEquals(expected.trainingUniqsToEndpoint, actual.trainingUniqsToEndpoint);
+		for (String smi : expected.getTrainingDataSmiles())
+			assertEquals(expected.getTrainingActivity(smi), actual.getTrainingActivity(smi));
+	}
+
+	@Test
+	public void testRoundTripBasic() throws Exception
+	{
+		for (FeatureSelection fs : new FeatureSelection[] { FeatureSelection.none,
+				FeatureSelection.fold })
+		{
+			BasicCFPMiner miner = init(new BasicCFPMiner(), CFPType.fcfp6, fs);
+			miner.setTrackCollisions(true);
+			miner.mine(TestData.SMILES);
+			for (int encoding : ENCODINGS)
+			{
+				File f = write(miner, encoding);
+				assertSameMiner(miner, CFPMinerIO.open(f.getAbsolutePath()));
+				assertSameMiner(miner, CFPMinerIO.read(f.getAbsolutePath()));
+				assertTrue(f.delete());
+			}
+		}
+	}
+
+	@Test
+	public void testRoundTripFiltered() throws Exception
+	{
+		CFPMiner miner = init(new CFPMiner(endpoints()), CFPType.ecfp4, FeatureSelection.filt);
+		miner.mine(TestData.SMILES);
+		miner.applyFilter();
+		for (int encoding : ENCODINGS)
+		{
+			File f = write(miner, encoding);
+			assertSameMiner(miner, (CFPMiner) CFPMinerIO.open(f.getAbsolutePath()));
+			assertSameMiner(miner, (CFPMiner) CFPMinerIO.read(f.getAbsolutePath()));
+			assertTrue(f.delete());
+		}
+	}
+
+	@Test
+	public void testMappedFilterNotAllowed() throws Exception
+	{
+		CFPMiner miner = init(new CFPMiner(endpoints()), CFPType.ecfp4, FeatureSelection.filt);
+		miner.mine(TestData.SMILES);
+		File f = write(miner, CFPMinerIO.POSTINGS_VARINT);
+		CFPMiner mapped = (CFPMiner) CFPMinerIO.open(f.getAbsolutePath());
+		Set<Integer> subset = new HashSet<>();
+		for (int i = 0; i < mapped.getNumCompounds(); i += 2)
+			subset.add(i);
+		for (int filter = 0; filter < 4; filter++)
+		{
+			try
+			{
+				if (filter == 0)
+					mapped.applyFilter();
+				else if (filter == 1)
+					mapped.applyFilter(subset);
+				else if (filter == 2)
+					mapped.applyClosedSetFilter(subset);
+				else
+					mapped.applyChiSquareFilter(subset);
+				fail("filter " + filter + " applied to memory-mapped miner");
+			}
+			catch (IllegalStateException e)
+			{
+				// expected
+			}
+			assertSameMiner(miner, mapped);
+		}
+		assertTrue(f.delete());
+	}
+
+	@Test(expected = IOException.class)
+	public void testUnknownVersion() throws Exception
+	{
+		BasicCFPMiner miner = init(new BasicCFPMiner(), CFPType.ecfp4, FeatureSelection.none);
+		miner.mine(TestData.SMILES);
+		File f = write(miner, CFPMinerIO.POSTINGS_VARINT);
+		try (RandomAccessFile raf = new RandomAccessFile(f, "rw"))
+		{
+			raf.seek(4);
+			raf.writeInt(CFPMinerIO.VERSION + 1);
+		}
+		CFPMinerIO.open(f.getAbsolutePath());
+	}
+}
@@ -0,0 +1,246 @@
+package org.mg.cdklib.cfp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class CompoundSetTest
+{
+	/**
+	 * sorted array representation (sets are only converted to bitmaps by optimize())
+	 */
+	private static CompoundSet sparse(int... compounds)
+	{
+		CompoundSet s = new CompoundSet();
+		for (int c : compounds)
+			s.add(c);
+		return s;
+	}
+
+	/**
+	 * bitmap representation: created dense, then reduced to the compounds (removing does not
+	 * switch the representation)
+	 */
+	private static CompoundSet dense(int... compounds)
+	{
+		int max = 128;
+		for (int c : compounds)
+			max = Math.max(max, c + 1);
+		long bits[] = new long[CompoundSet.numWords(max)];
+		Arrays.fill(bits, -1L);
+		CompoundSet s = CompoundSet.ofBitmap(bits);
+		Set<Integer> keep = new HashSet<>();
+		for (int c : compounds)
+			keep.add(c);
+		for (int c = 0; c < bits.length * 64; c++)
+			if (!keep.contains(c))
+				s.remove(c);
+		return s;
+	}
+
+	private static int[] random(Random r, int n, int max)
+	{
+		TreeSet<Integer> s = new TreeSet<>();
+		while (s.size() < n)
+			s.add(r.nextInt(max));
+		int v[] = new int[n];
+		int i = 0;
+		for (int c : s)
+			v[i++] = c;
+		return v;
+	}
+
+	private static int serializedSize(Object o) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+		{
+			out.writeObject(o);
+		}
+		return bytes.size();
+	}
+
+	@Test
+	public void testAddContainsRemove()
+	{
+		for (CompoundSet s : new CompoundSet[] { sparse(), dense() })
+		{
+			assertTrue(s.add(70));
+			assertTrue(s.add(3));
+			assertTrue(s.add(150));
+			assertFalse(s.add(3));
+			assertEquals(3, s.size());
+			assertTrue(s.contains(3));
+			assertTrue(s.contains(Integer.valueOf(150)));
+			assertFalse(s.contains(4));
+			assertFalse(s.contains(100000));
+			assertFalse(s.contains("3"));
+			assertEquals(Arrays.asList(3, 70, 150), new ArrayList<>(s));
+			assertTrue(s.remove(70));
+			assertFalse(s.remove(70));
+			assertFalse(s.remove(Integer.valueOf(4)));
+			assertArrayEquals(new int[] { 3, 150 }, s.toIntArray());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddNegative()
+	{
+		sparse().add(-1);
+	}
+
+	@Test
+	public void testSwitchRepresentation() throws IOException
+	{
+		CompoundSet s = new CompoundSet();
+		for (int c = 0; c < 1000; c++)
+			s.add(c);
+		int asArray = serializedSize(s);
+		// dense: 16 words instead of 1000 ints
+		s.optimize();
+		int asBitmap = serializedSize(s);
+		assertTrue(asBitmap + " < " + asArray, asBitmap * 10 < asArray);
+		assertEquals(1000, s.size());
+		assertTrue(s.contains(999));
+		assertFalse(s.contains(1000));
+
+		// sparse again: few compounds spread over the bitmap
+		for (int c = 0; c < 1000; c++)
+			if (c % 100 != 0)
+				s.remove(c);
+		s.optimize();
+		assertTrue(serializedSize(s) < asBitmap);
+		assertArrayEquals(new int[] { 0, 100, 200, 300, 400, 500, 600, 700, 800, 900 },
+				s.toIntArray());
+
+		// growing a bitmap beyond its words
+		CompoundSet d = dense(1, 2, 3);
+		d.add(5000);
+		assertArrayEquals(new int[] { 1, 2, 3, 5000 }, d.toIntArray());
+
+		s.clear();
+		s.optimize();
+		assertEquals(0, s.size());
+		assertFalse(s.iterator().hasNext());
+	}
+
+	@Test
+	public void testIntersectSize()
+	{
+		Random r = new Random(1);
+		for (int i = 0; i < 20; i++)
+		{
+			int a[] = random(r, 1 + r.nextInt(200), 1000);
+			int b[] = random(r, 1 + r.nextInt(200), 1000);
+			Set<Integer> ref = new HashSet<>();
+			for (int c : a)
+				ref.add(c);
+			List<Integer> expected = new ArrayList<>();
+			for (int c : b)
+				if (ref.contains(c))
+					expected.add(c);
+
+			CompoundSet sets[] = { sparse(a), dense(a) };
+			CompoundSet others[] = { sparse(b), dense(b) };
+			for (CompoundSet s : sets)
+			{
+				for (CompoundSet o : others)
+				{
+					assertEquals(expected.size(), s.intersectSize(o));
+					assertEquals(expected.size(), o.intersectSize(s));
+				}
+				long bitmap[] = CompoundSet.bitmap(others[0], 1000);
+				assertEquals(expected.size(), s.intersectSize(bitmap));
+				assertEquals(expected, new ArrayList<>(s.intersect(bitmap)));
+				// bitmap shorter than the set
+				long shortBitmap[] = Arrays.copyOf(bitmap, 2);
+				int n = 0;
+				for (int c : expected)
+					if (c < 128)
+						n++;
+				assertEquals(n, s.intersectSize(shortBitmap));
+				assertEquals(n, s.intersect(shortBitmap).size());
+			}
+		}
+	}
+
+	@Test
+	public void testEqualsHashCode()
+	{
+		CompoundSet s = sparse(3, 70, 150);
+		CompoundSet d = dense(3, 70, 150);
+		Set<Integer> h = new HashSet<>(Arrays.asList(3, 70, 150));
+		assertEquals(s, d);
+		assertEquals(d, s);
+		assertEquals(s.hashCode(), d.hashCode());
+		assertEquals(h, s);
+		assertEquals(s, h);
+		assertEquals(h, d);
+		assertEquals(d, h);
+		assertEquals(h.hashCode(), s.hashCode());
+		assertEquals(h.hashCode(), d.hashCode());
+		assertNotEquals(s, sparse(3, 70));
+		assertNotEquals(d, dense(3, 70, 151));
+		assertNotEquals(s, dense(3, 70, 151));
+	}
+
+	@Test
+	public void testRetainAllAndClone()
+	{
+		for (CompoundSet s : new CompoundSet[] { sparse(1, 5, 9, 200), dense(1, 5, 9, 200) })
+		{
+			CompoundSet c = s.clone();
+			assertTrue(s.retainAll(Arrays.asList(5, 200, 7)));
+			assertFalse(s.retainAll(Arrays.asList(5, 200)));
+			assertArrayEquals(new int[] { 5, 200 }, s.toIntArray());
+			// the clone is independent
+			assertArrayEquals(new int[] { 1, 5, 9, 200 }, c.toIntArray());
+			c.add(300);
+			assertEquals(2, s.size());
+		}
+	}
+
+	@Test
+	public void testIteratorRemove()
+	{
+		for (CompoundSet s : new CompoundSet[] { sparse(1, 5, 9, 200), dense(1, 5, 9, 200) })
+		{
+			Iterator<Integer> it = s.iterator();
+			while (it.hasNext())
+				if (it.next() % 5 == 0)
+					it.remove();
+			assertArrayEquals(new int[] { 1, 9 }, s.toIntArray());
+			assertEquals(2, s.size());
+		}
+	}
+
+	@Test
+	public void testToBitmapAndForEach()
+	{
+		for (CompoundSet s : new CompoundSet[] { sparse(0, 63, 64, 130), dense(0, 63, 64, 130) })
+		{
+			long bits[] = s.toBitmap(131);
+			assertEquals(3, bits.length);
+			assertEquals(s, CompoundSet.ofBitmap(bits));
+			final List<Integer> l = new ArrayList<>();
+			s.forEachCompound(c -> l.add(c));
+			assertEquals(Arrays.asList(0, 63, 64, 130), l);
+		}
+	}
+}
@@ -0,0 +1,166 @@
+package org.mg.cdklib.cfp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class FragmentIndexTest
+{
+	/**
+	 * fragments 10, 20, 30, 40 with compounds {0,1}, {1}, {0,2}, {2}
+	 */
+	private static FragmentIndex index()
+	{
+		FragmentIndex index = new FragmentIndex();
+		index.add(10, 0);
+		index.add(30, 0);
+		index.add(10, 1);
+		index.add(20, 1);
+		index.add(30, 2);
+		index.add(40, 2);
+		// fragment order is insertion order
+		index.add(30, 2);
+		return index;
+	}
+
+	private static List<Integer> ids(Set<CFPFragment> fragments)
+	{
+		List<Integer> l = new ArrayList<>();
+		for (CFPFragment f : fragments)
+			l.add(f.getId());
+		return l;
+	}
+
+	@Test
+	public void testAdd()
+	{
+		FragmentIndex index = index();
+		assertEquals(4, index.size());
+		assertEquals(4, index.getNumSlots());
+		assertEquals(Arrays.asList(10, 30, 20, 40), ids(index.keySet()));
+		assertEquals(1, index.slotOf(30));
+		assertEquals(-1, index.slotOf(50));
+		assertArrayEquals(new int[] { 0, 2 }, index.get(new CFPFragment(30)).toIntArray());
+		assertNull(index.get(new CFPFragment(50)));
+		assertTrue(index.contains(0, 1));
+		assertFalse(index.contains(2, 0));
+	}
+
+	@Test
+	public void testGrow()
+	{
+		FragmentIndex index = new FragmentIndex();
+		for (int i = 0; i < 10000; i++)
+			index.add(i * 7919, i % 13);
+		assertEquals(10000, index.size());
+		for (int i = 0; i < 10000; i++)
+		{
+			assertEquals(i, index.slotOf(i * 7919));
+			assertTrue(index.contains(i, i % 13));
+		}
+		assertEquals(-1, index.slotOf(1));
+	}
+
+	@Test
+	public void testRemoveSlot()
+	{
+		FragmentIndex index = index();
+		index.removeSlot(1);
+		assertEquals(3, index.size());
+		assertEquals(4, index.getNumSlots());
+		assertTrue(index.isRemoved(1));
+		assertEquals(-1, index.slotOf(30));
+		assertFalse(index.containsKey(new CFPFragment(30)));
+		assertEquals(2, index.nextSlot(1));
+		assertEquals(-1, index.nextSlot(4));
+		assertEquals(Arrays.asList(10, 20, 40), ids(index.keySet()));
+		assertArrayEquals(new int[][] { { 0 }, { 0, 2 }, { 3 } }, index.compoundToSlots(3));
+
+		// re-added fragments keep their slot
+		index.add(30, 1);
+		assertEquals(1, index.slotOf(30));
+		assertEquals(4, index.size());
+		assertArrayEquals(new int[] { 0, 1, 2 }, index.getCompounds(1).toIntArray());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRemoveSlotTwice()
+	{
+		FragmentIndex index = index();
+		index.removeSlot(1);
+		index.removeSlot(1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDuplicateIds()
+	{
+		new FragmentIndex(new int[] { 1, 2, 1 },
+				new CompoundSet[] { new CompoundSet(), new CompoundSet(), new CompoundSet() });
+	}
+
+	@Test
+	public void testView()
+	{
+		FragmentIndex index = index();
+		index.removeSlot(3);
+		FragmentIndex view = index.view();
+		assertTrue(view.isViewOf(index));
+		assertFalse(index.isViewOf(view));
+		assertFalse(index.clone().isViewOf(index));
+		assertEquals(3, view.size());
+
+		// removing from the view does not affect the index
+		view.removeSlot(0);
+		assertEquals(Arrays.asList(30, 20), ids(view.keySet()));
+		assertEquals(Arrays.asList(10, 30, 20), ids(index.keySet()));
+		assertEquals(0, index.slotOf(10));
+		assertEquals(-1, view.slotOf(10));
+		// compound sets are shared
+		assertTrue(view.getCompounds(1) == index.getCompounds(1));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testViewAdd()
+	{
+		index().view().add(10, 5);
+	}
+
+	@Test
+	public void testFragments()
+	{
+		FragmentIndex index = index();
+		Set<CFPFragment> f = index.fragments(new int[] { 0, 2 });
+		assertEquals(2, f.size());
+		assertEquals(Arrays.asList(10, 20), ids(f));
+		assertTrue(f.contains(new CFPFragment(20)));
+		assertFalse(f.contains(new CFPFragment(30)));
+		assertFalse(f.contains(new CFPFragment(50)));
+		index.removeSlot(2);
+		assertFalse(f.contains(new CFPFragment(20)));
+	}
+
+	@Test
+	public void testClone()
+	{
+		FragmentIndex index = index();
+		index.removeSlot(2);
+		FragmentIndex c = index.clone();
+		assertEquals(ids(index.keySet()), ids(c.keySet()));
+		assertArrayEquals(index.compoundToSlots(3), c.compoundToSlots(3));
+		c.add(50, 0);
+		c.add(10, 2);
+		c.removeSlot(0);
+		assertEquals(Arrays.asList(10, 30, 40), ids(index.keySet()));
+		assertArrayEquals(new int[] { 0, 1 }, index.getCompounds(0).toIntArray());
+		assertEquals(-1, index.slotOf(50));
+	}
+}
@@ -0,0 +1,106 @@
+package org.mg.cdklib.cfp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class ParallelMiningTest
+{
+	private static BasicCFPMiner mine(CFPType type, FeatureSelection featureSelection,
+			int numThreads) throws Exception
+	{
+		BasicCFPMiner miner = new BasicCFPMiner();
+		miner.setType(type);
+		miner.setFeatureSelection(featureSelection);
+		miner.setHashfoldsize(64);
+		miner.setNumThreads(numThreads);
+		miner.mine(TestData.SMILES);
+		return miner;
+	}
+
+	private static void assertSameResult(BasicCFPMiner seq, BasicCFPMiner par)
+	{
+		assertEquals(seq.getNumCompounds(), par.getNumCompounds());
+		assertEquals(seq.numUnfoldedConflicts, par.numUnfoldedConflicts);
+		// fragment order and compound sets
+		assertEquals(seq.getNumFragments(), par.getNumFragments());
+		for (int i = 0; i < seq.getNumFragments(); i++)
+		{
+			CFPFragment f = seq.getFragmentViaIdx(i);
+			assertEquals(f, par.getFragmentViaIdx(i));
+			assertEquals(new ArrayList<>(seq.getCompoundsForFragment(f)),
+					new ArrayList<>(par.getCompoundsForFragment(f)));
+		}
+		// compound to fragment
+		for (int c = 0; c < seq.getNumCompounds(); c++)
+			assertEquals(new ArrayList<>(seq.getFragmentsForCompound(c)),
+					new ArrayList<>(par.getFragmentsForCompound(c)));
+	}
+
+	@Test
+	public void testParallelEqualsSequential() throws Exception
+	{
+		for (CFPType type : new CFPType[] { CFPType.ecfp4, CFPType.ecfp6, CFPType.fcfp4 })
+			for (FeatureSelection fs : new FeatureSelection[] { FeatureSelection.none,
+					FeatureSelection.fold })
+			{
+				BasicCFPMiner seq = mine(type, fs, 1);
+				for (int numThreads : new int[] { 2, 4, 7 })
+					assertSameResult(seq, mine(type, fs, numThreads));
+			}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testMineMultipleDifferentNumThreads() throws Exception
+	{
+		BasicCFPMiner miners[] = new BasicCFPMiner[2];
+		for (int i = 0; i < miners.length; i++)
+		{
+			miners[i] = new BasicCFPMiner();
+			miners[i].setType(CFPType.ecfp4);
+			miners[i].setFeatureSelection(FeatureSelection.none);
+			miners[i].setNumThreads(i + 1);
+		}
+		BasicCFPMiner.mineMultiple(TestData.SMILES, miners);
+	}
+
+	@Test
+	public void testConcurrentQueries() throws Exception
+	{
+		List<String> endpoints = new ArrayList<>();
+		for (int i = 0; i < TestData.SMILES.size(); i++)
+			endpoints.add(i % 3 == 0 ? "active" : "inactive");
+		final CFPMiner miner = new CFPMiner(endpoints);
+		miner.setType(CFPType.ecfp4);
+		miner.setFeatureSelection(FeatureSelection.fold);
+		miner.setHashfoldsize(64);
+		miner.mine(TestData.SMILES);
+		miner.freeze();
+
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		try
+		{
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (int t = 0; t < 8; t++)
+				results.add(pool.submit(() -> {
+					boolean ok = miner.getActiveIdx() == 0;
+					for (int i = 0; i < TestData.SMILES.size(); i++)
+						ok &= endpoints.get(i)
+								.equals(miner.getTrainingActivity(TestData.SMILES.get(i)));
+					return ok;
+				}));
+			for (Future<Boolean> r : results)
+				assertEquals(true, r.get());
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.mg.cdklib.cfp;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class SimilarityMatrixTest
+{
+	@Test
+	public void testSize()
+	{
+		assertEquals(0, BasicCFPMiner.similarityMatrixSize(0));
+		assertEquals(0, BasicCFPMiner.similarityMatrixSize(1));
+		assertEquals(1, BasicCFPMiner.similarityMatrixSize(2));
+		assertEquals(6, BasicCFPMiner.similarityMatrixSize(4));
+		assertEquals(1073720970, BasicCFPMiner.similarityMatrixSize(46341));
+		// n*(n-1) exceeds int from here on
+		assertEquals(1073767311, BasicCFPMiner.similarityMatrixSize(46342));
+		assertEquals(1249975000, BasicCFPMiner.similarityMatrixSize(50000));
+		assertEquals(2147450880, BasicCFPMiner.similarityMatrixSize(65536));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSizeTooLarge()
+	{
+		BasicCFPMiner.similarityMatrixSize(65537);
+	}
+
+	@Test
+	public void testIndex()
+	{
+		for (int n : new int[] { 2, 3, 10, 50000 })
+		{
+			int size = BasicCFPMiner.similarityMatrixSize(n);
+			assertEquals(0, BasicCFPMiner.similarityIndex(0, 1, n));
+			assertEquals(n - 2, BasicCFPMiner.similarityIndex(0, n - 1, n));
+			assertEquals(size - 1, BasicCFPMiner.similarityIndex(n - 2, n - 1, n));
+			assertEquals(BasicCFPMiner.similarityIndex(0, n - 1, n),
+					BasicCFPMiner.similarityIndex(n - 1, 0, n));
+		}
+		// rows are consecutive
+		int n = 10;
+		int idx = 0;
+		for (int i = 0; i < n; i++)
+			for (int j = i + 1; j < n; j++)
+				assertEquals(idx++, BasicCFPMiner.similarityIndex(i, j, n));
+		assertEquals(BasicCFPMiner.similarityMatrixSize(n), idx);
+	}
+}
@@ -0,0 +1,85 @@
+package org.mg.cdklib.cfp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StreamMiningTest
+{
+	private static List<String> endpoints(List<String> smiles)
+	{
+		List<String> l = new ArrayList<>();
+		for (int i = 0; i < smiles.size(); i++)
+			l.add(i % 3 == 0 ? "active" : "inactive");
+		return l;
+	}
+
+	private static CFPMiner miner(List<String> endpoints) throws Exception
+	{
+		CFPMiner miner = new CFPMiner(endpoints);
+		miner.setType(CFPType.ecfp4);
+		miner.setFeatureSelection(FeatureSelection.filt);
+		miner.setHashfoldsize(32);
+		miner.setNumThreads(2);
+		return miner;
+	}
+
+	@Test
+	public void testStreamEqualsList() throws Exception
+	{
+		List<String> smiles = TestData.SMILES;
+		List<String> endpoints = endpoints(smiles);
+		CFPMiner list = miner(endpoints);
+		list.mine(smiles);
+		list.applyFilter();
+
+		// with an invalid record (and its endpoint)
+		List<String> records = new ArrayList<>(smiles);
+		List<String> recordEndpoints = new ArrayList<>(endpoints);
+		records.add(3, "CC!");
+		recordEndpoints.add(3, "invalid");
+		CFPMiner stream = miner(recordEndpoints);
+		assertEquals(1, stream.mine(records.iterator()));
+		stream.applyFilter();
+
+		assertEquals(smiles, stream.getTrainingDataSmiles());
+		assertEquals(endpoints, stream.getEndpoints());
+		assertEquals(list.toString(), stream.toString());
+		for (int i = 0; i < list.getNumFragments(); i++)
+			assertEquals(list.getFragmentViaIdx(i), stream.getFragmentViaIdx(i));
+		for (int i = 0; i < smiles.size(); i++)
+			assertEquals(endpoints.get(i), stream.getTrainingActivity(smiles.get(i)));
+	}
+
+	@Test
+	public void testStreamDuplicate() throws Exception
+	{
+		List<String> records = new ArrayList<>(TestData.SMILES);
+		records.add(TestData.SMILES.get(5));
+		CFPMiner miner = miner(endpoints(records));
+		try
+		{
+			miner.mine(records.iterator());
+			fail("duplicate not detected");
+		}
+		catch (IllegalStateException e)
+		{
+			assertTrue(e.getMessage(), e.getMessage().startsWith("no duplicates allowed!"));
+		}
+		// the batch with the duplicate has not been inserted
+		assertEquals(0, miner.getNumCompounds());
+		assertEquals(0, miner.getTrainingDataSmiles().size());
+		assertEquals(0, miner.getEndpoints().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testStreamMissingEndpoints() throws Exception
+	{
+		miner(endpoints(TestData.SMILES.subList(0, 10))).mine(TestData.SMILES.iterator());
+	}
+}
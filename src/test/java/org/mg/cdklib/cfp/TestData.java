@@ -0,0 +1,20 @@
+package org.mg.cdklib.cfp;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * small set of valid (and distinct) smiles for the tests
+ */
+class TestData
+{
+	static final List<String> SMILES = Arrays.asList("CCO", "CC(=O)O", "c1ccccc1", "Cc1ccccc1",
+			"Oc1ccccc1", "Nc1ccccc1", "c1ccc2ccccc2c1", "CC(C)O", "CCN(CC)CC", "OC(=O)c1ccccc1",
+			"CC(=O)Oc1ccccc1C(=O)O", "CN1C=NC2=C1C(=O)N(C(=O)N2C)C", "CC(C)Cc1ccc(cc1)C(C)C(=O)O",
+			"CC(=O)Nc1ccc(O)cc1", "c1ccncc1", "C1CCCCC1", "C1CCNCC1", "C1CCOC1", "ClCCl",
+			"BrCCBr", "CCCCCCCC", "CCCCCCCCO", "OCC(O)CO", "NCC(=O)O", "CC(N)C(=O)O",
+			"OC(=O)CCC(=O)O", "c1ccc(cc1)N(=O)=O", "Clc1ccccc1", "Clc1ccc(Cl)cc1", "COc1ccccc1",
+			"CC(=O)c1ccccc1", "O=Cc1ccccc1", "c1ccc(cc1)S(=O)(=O)N", "CCOC(=O)C", "CCCCN",
+			"c1cc[nH]c1", "c1ccoc1", "c1ccsc1", "OC1CCCCC1", "CC(C)(C)O", "c1ccc2[nH]ccc2c1",
+			"NC(=O)c1ccccc1", "CCOCC", "C=CC=C", "C#N", "CC#N");
+}